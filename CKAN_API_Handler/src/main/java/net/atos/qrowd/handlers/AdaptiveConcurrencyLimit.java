@@ -0,0 +1,149 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AIMD limit on the number of operations in flight against one CKAN instance.
+ * <p>
+ * The latency of every call is compared with a slowly moving baseline: while the recent latency stays within
+ * <code>tolerance</code> times the baseline the limit grows by one per round of calls, and when it goes above it,
+ * or a call fails, the limit is multiplied by <code>backoff</code>. Permits are taken with {@link #tryAcquire()},
+ * which never blocks, so callers can decide to yield instead of waiting.
+ * <p>
+ * Limits are shared by every caller of the same host, see {@link #forHost(String)}.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final ConcurrentMap<String, AdaptiveConcurrencyLimit> LIMITS = new ConcurrentHashMap<>();
+
+    private static final double SHORT_ALPHA = 0.2;
+    private static final double BASELINE_ALPHA = 0.01;
+
+    private final Logger log = Logger.getLogger(AdaptiveConcurrencyLimit.class);
+
+    private final String name;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile double limit;
+    private int minLimit = 1;
+    private int maxLimit = 32;
+    private double tolerance = 2.0;
+    private double backoff = 0.9;
+
+    private double shortLatency;
+    private double baselineLatency;
+    private long samplesSinceDecrease;
+
+    public AdaptiveConcurrencyLimit(String name) {
+        this.name = name;
+        this.limit = 4;
+    }
+
+    /**
+     * Get the limit shared by every caller of the CKAN instance in <code>host</code>, creating it if needed
+     *
+     * @param host Base url of the CKAN instance
+     * @return The limit for that host
+     */
+    public static AdaptiveConcurrencyLimit forHost(String host) {
+        return LIMITS.computeIfAbsent(host, AdaptiveConcurrencyLimit::new);
+    }
+
+    /**
+     * Change the bounds of the limit, clamping the current value into them
+     *
+     * @param minLimit  Lowest value the limit can be cut to
+     * @param maxLimit  Highest value the limit can grow to
+     * @param tolerance Ratio between the recent latency and the baseline above which the limit is cut
+     */
+    public synchronized void configure(int minLimit, int maxLimit, double tolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = tolerance;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, limit));
+    }
+
+    /**
+     * Take a permit if the number of operations in flight is under the current limit
+     *
+     * @return true if the permit was taken, and must be given back with {@link #release()}
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Feed the latency and outcome of one call to CKAN to adjust the limit
+     *
+     * @param latencyNanos Time taken by the call
+     * @param success      false if the call failed because of CKAN (connection error, 5xx, 429)
+     */
+    public synchronized void onSample(long latencyNanos, boolean success) {
+        samplesSinceDecrease++;
+        if (success) {
+            if (baselineLatency == 0) {
+                baselineLatency = latencyNanos;
+                shortLatency = latencyNanos;
+            }
+            shortLatency += SHORT_ALPHA * (latencyNanos - shortLatency);
+            baselineLatency += BASELINE_ALPHA * (latencyNanos - baselineLatency);
+        }
+
+        if (!success || shortLatency > tolerance * baselineLatency) {
+            //Cut at most once per round of calls, all the calls in flight suffer the same slowdown
+            if (samplesSinceDecrease >= limit) {
+                double newLimit = Math.max(minLimit, limit * backoff);
+                if ((int) newLimit != (int) limit) {
+                    log.info("Concurrency limit for " + name + " reduced to " + (int) newLimit);
+                }
+                limit = newLimit;
+                samplesSinceDecrease = 0;
+            }
+        } else if (inFlight.get() * 2 >= (int) limit) {
+            //Only grow while the current limit is being used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * @return The current number of operations allowed in flight
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -16,30 +16,53 @@
 package net.atos.qrowd.handlers;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import net.atos.qrowd.pojos.*;
+import net.atos.qrowd.pojos.Package;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 public class CKAN_API_Handler {
@@ -48,6 +71,40 @@ public class CKAN_API_Handler {
     private String HOST;
     private String api_key;
     private CloseableHttpClient httpclient;
+    private CircuitBreaker circuitBreaker;
+    private RateLimiter rateLimiter;
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+    private HedgePolicy hedgePolicy;
+
+    private PackageLookup packageLookup = PackageLookup.SEARCH;
+    //Whether the server knows package_revise (CKAN 2.9 and later), null until it is first tried
+    private volatile Boolean reviseSupported;
+    private MetadataCache localMetadataCache;
+    private MetadataCache sharedMetadataCache;
+    private long sharedMetadataTtl = 60000;
+
+    //How long a claim to create an organization or package is honoured, as seen by each waiter, before it is taken over
+    private static final long CREATION_CLAIM_TIMEOUT = 60000;
+    private static final long CREATION_POLL_INTERVAL = 500;
+    //Value of a creation claim once its creator is done, free to be claimed again
+    private static final String CLAIM_RELEASED = "released";
+    private ResponseCache responseCache;
+
+    private enum CallType {READ, WRITE}
+
+    /**
+     * How packages are looked up by name in {@link #packageExists(String)} and {@link #getPackageByName(String)}
+     */
+    public enum PackageLookup {
+        /**
+         * package_search?q=name:X, goes through the search index
+         */
+        SEARCH,
+        /**
+         * package_show?id=X, primary key lookup that sees packages as soon as they are created
+         */
+        SHOW
+    }
 
     public CKAN_API_Handler(String HOST, String api_key) {
         this.HOST = HOST;
@@ -55,6 +112,88 @@ public class CKAN_API_Handler {
         this.httpclient = HttpClients.createDefault();
     }
 
+    /**
+     * Set the circuit breaker every call of this handler goes through. When the breaker is open the calls fail fast
+     * with a {@link CircuitBreakerOpenException} instead of reaching CKAN.
+     *
+     * @param circuitBreaker Breaker to use, usually the one shared for the host ({@link CircuitBreaker#forHost(String)}), or null to disable it
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Set the client-side rate limits applied to the calls of this handler. Calls wait until the limiter lets them
+     * through, so the request rate is smoothed to the quota instead of being rejected by CKAN.
+     *
+     * @param rateLimiter Limiter to use, usually the one shared for the host and key ({@link RateLimiter#forEndpoint(String, String)}), or null to disable it
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Set the adaptive concurrency limit fed with the latency and outcome of every call of this handler.
+     * The handler does not take permits from it, callers are expected to hold one while using the handler.
+     *
+     * @param concurrencyLimit Limit to feed, usually the one shared for the host ({@link AdaptiveConcurrencyLimit#forHost(String)}), or null to disable it
+     */
+    public void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * Enable hedging of the read calls (package, organization and resource lookups) of this handler.
+     * Write calls are never hedged.
+     *
+     * @param hedgePolicy Policy to use, usually the one shared for the host ({@link HedgePolicy#forHost(String)}), or null to disable hedging
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Choose how packages are looked up by name
+     *
+     * @param packageLookup Lookup to use, {@link PackageLookup#SEARCH} by default
+     */
+    public void setPackageLookup(PackageLookup packageLookup) {
+        this.packageLookup = packageLookup;
+    }
+
+    /**
+     * Set the cache used to send conditional requests in the package_show lookups
+     *
+     * @param responseCache Cache to use, usually the one shared for the host and key ({@link ResponseCache#forEndpoint(String, String)}), or null to disable it
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Set the caches of the organizations and packages known to exist. Lookups try the local cache, then the shared
+     * one, then CKAN. The shared cache also elects which caller creates a missing organization or package in
+     * {@link #ensureOrganization(String)} and {@link #ensurePackage(String, String, String, boolean, String)}, so
+     * processes sharing it do not all create the same one.
+     *
+     * @param localMetadataCache  Cache of this process, usually the one shared for the host and key ({@link LocalMetadataCache#forEndpoint(String, String)}), or null
+     * @param sharedMetadataCache Cache shared with other processes, or null
+     */
+    public void setMetadataCache(MetadataCache localMetadataCache, MetadataCache sharedMetadataCache) {
+        setMetadataCache(localMetadataCache, sharedMetadataCache, 60000);
+    }
+
+    /**
+     * @param sharedTtlMillis How long an entry of the shared cache is trusted after it was written, the shared cache
+     *                        itself may keep entries forever
+     * @see #setMetadataCache(MetadataCache, MetadataCache)
+     */
+    public void setMetadataCache(MetadataCache localMetadataCache, MetadataCache sharedMetadataCache, long sharedTtlMillis) {
+        this.localMetadataCache = localMetadataCache;
+        this.sharedMetadataCache = sharedMetadataCache;
+        this.sharedMetadataTtl = sharedTtlMillis;
+    }
+
     /**
      * Call the CKAN API to check if the dataset with the name passed as argument exists in the CKAN instance
      *
@@ -63,8 +202,22 @@ public class CKAN_API_Handler {
      * @throws IOException Exception parsing the result message or closing the connection
      */
     public boolean packageExists(String package_id) throws IOException {
+        String key = metadataKey("package", package_id);
+        if (isCached(key)) {
+            return true;
+        }
+        boolean exists = lookupPackage(package_id);
+        if (exists) {
+            cacheExisting(key);
+        }
+        return exists;
+    }
+
+    private boolean lookupPackage(String package_id) throws IOException {
+        if (packageLookup == PackageLookup.SHOW) {
+            return showPackage(package_id) != null;
+        }
 
-        String line;
         StringBuilder sb = new StringBuilder();
         HttpPost postRequest;
         Gson gson = new Gson();
@@ -72,16 +225,9 @@ public class CKAN_API_Handler {
         postRequest = new HttpPost(HOST + "/api/3/action/package_search?q=name:" + package_id);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        httpclient.close();
-        response.close();
+        ApiResponse response = execute(postRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        sb.append(response.getBody());
         // Parse the response into a POJO to be able to get results from it.
         // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
         if (statusCode == 200) {
@@ -100,6 +246,191 @@ public class CKAN_API_Handler {
         }
     }
 
+    /**
+     * Create the organization if it does not exist. With a shared metadata cache only one of the callers sharing it
+     * creates it, the others wait for it to exist.
+     *
+     * @param organization_id Name of the organization
+     * @throws IOException Exception parsing the result message or closing the connection, or interrupted while waiting
+     */
+    public void ensureOrganization(String organization_id) throws IOException {
+        if (organizationExists(organization_id)) {
+            return;
+        }
+        String key = metadataKey("organization", organization_id);
+        String token = claimCreation(key, () -> organizationExists(organization_id));
+        if (token != null) {
+            try {
+                if (!lookupOrganization(organization_id)) {
+                    try {
+                        createOrganization(organization_id);
+                    } catch (CircuitBreakerOpenException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        //Created by a caller that does not share the metadata cache
+                        if (!lookupOrganization(organization_id)) {
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                releaseCreation(key, token);
+            }
+        }
+    }
+
+    /**
+     * Create the package if it does not exist. With a shared metadata cache only one of the callers sharing it
+     * creates it, the others wait for it to exist.
+     *
+     * @throws IOException Exception parsing the result message or closing the connection, or interrupted while waiting
+     * @see #createPackage(String, String, String, boolean, String)
+     */
+    public void ensurePackage(String organization_id, String package_id, String package_description, boolean package_private, String tags) throws IOException {
+        if (packageExists(package_id)) {
+            return;
+        }
+        String key = metadataKey("package", package_id);
+        String token = claimCreation(key, () -> packageExists(package_id));
+        if (token != null) {
+            try {
+                if (!lookupPackage(package_id)) {
+                    try {
+                        createPackage(organization_id, package_id, package_description, package_private, tags);
+                    } catch (CircuitBreakerOpenException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        //Created by a caller that does not share the metadata cache
+                        if (!lookupPackage(package_id)) {
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                releaseCreation(key, token);
+            }
+        }
+    }
+
+    private interface ExistenceCheck {
+        boolean exists() throws IOException;
+    }
+
+    /**
+     * Become the creator of a missing organization or package, or wait for the current creator to finish.
+     * <p>
+     * A claim is a random token, so it carries no clock: a waiter measures with its own clock how long it has seen the
+     * same claim, and takes it over atomically, so only one of the waiters does. A released claim is taken the same way.
+     *
+     * @return The token of the claim if the caller has to create it, null if it was created by someone else meanwhile
+     */
+    private String claimCreation(String key, ExistenceCheck check) throws IOException {
+        MetadataCache claims = sharedMetadataCache != null ? sharedMetadataCache : localMetadataCache;
+        String token = UUID.randomUUID().toString();
+        if (claims == null) {
+            return token;
+        }
+        String claimKey = key + "|creator";
+        String observed = null;
+        long observedSince = 0;
+        while (!claims.putIfAbsent(claimKey, token)) {
+            String claim = claims.get(claimKey);
+            if (CLAIM_RELEASED.equals(claim)) {
+                if (claims.replace(claimKey, CLAIM_RELEASED, token)) {
+                    return token;
+                }
+                continue;
+            }
+            if (claim != null && !claim.equals(observed)) {
+                observed = claim;
+                observedSince = System.nanoTime();
+            } else if (claim != null && System.nanoTime() - observedSince > TimeUnit.MILLISECONDS.toNanos(CREATION_CLAIM_TIMEOUT)) {
+                //The creator died or hung, take the claim over unless another waiter already did
+                if (claims.replace(claimKey, claim, token)) {
+                    log.warn("Taking over the stale creation claim of " + key);
+                    return token;
+                }
+                observed = null;
+            }
+            if (check.exists()) {
+                return null;
+            }
+            try {
+                Thread.sleep(CREATION_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the creation of " + key);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Release the claim if the caller still holds it. A creator that stalled past the claim timeout leaves alone the
+     * claim of the waiter that took it over. The claim is marked released rather than removed, since the shared cache
+     * has no atomic remove.
+     */
+    private void releaseCreation(String key, String token) throws IOException {
+        MetadataCache claims = sharedMetadataCache != null ? sharedMetadataCache : localMetadataCache;
+        if (claims != null && !claims.replace(key + "|creator", token, CLAIM_RELEASED)) {
+            log.warn("The creation claim of " + key + " was taken over, leaving it to its new holder");
+        }
+    }
+
+    private String metadataKey(String type, String name) {
+        return "ckan|" + HOST + "|" + type + "|" + name;
+    }
+
+    /**
+     * @return true if the local or the shared metadata cache knows the organization or package exists. Entries of the
+     * shared cache hold when they were written and are only trusted for the shared time to live.
+     */
+    private boolean isCached(String key) throws IOException {
+        if (localMetadataCache != null && localMetadataCache.get(key) != null) {
+            return true;
+        }
+        if (sharedMetadataCache != null) {
+            String written = sharedMetadataCache.get(key);
+            if (written == null || !written.matches("\\d+") || System.currentTimeMillis() - Long.parseLong(written) >= sharedMetadataTtl) {
+                return false;
+            }
+            if (localMetadataCache != null) {
+                localMetadataCache.put(key, "exists");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void cacheExisting(String key) throws IOException {
+        if (localMetadataCache != null) {
+            localMetadataCache.put(key, "exists");
+        }
+        if (sharedMetadataCache != null) {
+            sharedMetadataCache.put(key, String.valueOf(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Drop the organization or package a write relied on from the metadata caches when CKAN answers that it does not
+     * exist, deleted outside this handler, so the next write looks it up again instead of trusting the caches
+     */
+    private void forgetIfNotFound(ApiResponse response, String key) throws IOException {
+        if (response.getStatusCode() == 404 || (response.getBody() != null && response.getBody().contains("Not found"))) {
+            log.warn("CKAN does not know " + key + " any more, removing it from the metadata caches");
+            forget(key);
+        }
+    }
+
+    private void forget(String key) throws IOException {
+        if (localMetadataCache != null) {
+            localMetadataCache.remove(key);
+        }
+        if (sharedMetadataCache != null) {
+            sharedMetadataCache.remove(key);
+        }
+    }
+
     /**
      * Method to get a complete dataset with all its resources from the CKAN API
      *
@@ -108,9 +439,11 @@ public class CKAN_API_Handler {
      * @throws IOException Exception parsing the result message or closing the connection
      */
     public Package_ getPackageByName(String name) throws IOException {
+        if (packageLookup == PackageLookup.SHOW) {
+            return showPackage(name);
+        }
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
-        String line;
 
         Gson gson = new Gson();
 
@@ -118,16 +451,9 @@ public class CKAN_API_Handler {
         postRequest = new HttpPost(HOST + "/api/3/action/package_search?q=name:" + name);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        httpclient.close();
-        response.close();
+        ApiResponse response = execute(postRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        sb.append(response.getBody());
         // Parse the response into a POJO to be able to get results from it.
         // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
         if (statusCode == 200) {
@@ -147,6 +473,149 @@ public class CKAN_API_Handler {
 
     }
 
+    /**
+     * Get a complete dataset with package_show, a primary key lookup that does not depend on the search index.
+     * When a response cache is set, the validators of the previous response are sent back so that an unchanged
+     * package comes back as 304 Not Modified and is read from the cache.
+     *
+     * @param name The name or id of the package
+     * @return Package_ class with the requested data if it exists, null if not found
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public Package_ showPackage(String name) throws IOException {
+        Gson gson = new Gson();
+
+        String url = HOST + "/api/3/action/package_show?id=" + URLEncoder.encode(name, "UTF-8");
+        HttpGet getRequest = new HttpGet(url);
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ResponseCache.Entry cached = responseCache == null ? null : responseCache.get(url);
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                getRequest.setHeader("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                getRequest.setHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+
+        ApiResponse response = execute(getRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        String body;
+        if (statusCode == 304 && cached != null) {
+            log.debug("Package: " + name + " not modified since the last lookup");
+            body = cached.getBody();
+        } else if (statusCode == 200) {
+            body = response.getBody();
+            if (responseCache != null) {
+                responseCache.put(url, response.getEtag(), response.getLastModified(), body);
+            }
+        } else {
+            if (responseCache != null) {
+                responseCache.invalidate(url);
+            }
+            log.warn("Package: " + name + " not found, statusCode " + statusCode);
+            return null;
+        }
+
+        PackageShowResponse packageShowResponse = gson.fromJson(body, PackageShowResponse.class);
+        log.info("Package: " + name + " was found in CKAN.");
+        return packageShowResponse.getResult();
+    }
+
+    /**
+     * Get one page of a package_search, including the private packages the api key can see
+     *
+     * @param query        Solr query (q), null to match every package
+     * @param filter_query Solr filter query (fq), may be null
+     * @param sort         Sort of the results, e.g. "metadata_modified asc", may be null
+     * @param rows         Number of packages in the page
+     * @param start        Offset of the first package of the page
+     * @return Package class with the total count of matching packages and the packages of the page
+     * @throws IOException Exception parsing the result message, closing the connection, or CKAN returned an error
+     */
+    public Package searchPackages(String query, String filter_query, String sort, int rows, int start) throws IOException {
+        Gson gson = new Gson();
+
+        StringBuilder url = new StringBuilder(HOST + "/api/3/action/package_search?include_private=true");
+        url.append("&rows=").append(rows).append("&start=").append(start);
+        if (query != null) {
+            url.append("&q=").append(URLEncoder.encode(query, "UTF-8"));
+        }
+        if (filter_query != null) {
+            url.append("&fq=").append(URLEncoder.encode(filter_query, "UTF-8"));
+        }
+        if (sort != null) {
+            url.append("&sort=").append(URLEncoder.encode(sort, "UTF-8"));
+        }
+        HttpPost postRequest = new HttpPost(url.toString());
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            throw new IOException("Error searching packages in CKAN, statusCode " + statusCode);
+        }
+        CkanFullList ckanFullList = gson.fromJson(response.getBody(), CkanFullList.class);
+        return ckanFullList.getPackage();
+    }
+
+    /**
+     * Get one page of the activity stream of recently changed packages, newest activity first
+     *
+     * @param offset Number of activities to skip
+     * @param limit  Maximum number of activities, CKAN caps it with ckan.activity_list_limit
+     * @return The activities of the page, empty when there are no more
+     * @throws IOException Exception parsing the result message, closing the connection, or CKAN returned an error
+     */
+    public List<Activity> recentlyChangedPackages(int offset, int limit) throws IOException {
+        Gson gson = new Gson();
+
+        HttpGet getRequest = new HttpGet(HOST + "/api/3/action/recently_changed_packages_activity_list?offset=" + offset + "&limit=" + limit);
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(getRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            throw new IOException("Error reading the recently changed packages from CKAN, statusCode " + statusCode);
+        }
+        List<Activity> activities = gson.fromJson(response.getBody(), ActivityListResponse.class).getResult();
+        return activities == null ? new ArrayList<>() : activities;
+    }
+
+    /**
+     * Remove a package from CKAN
+     *
+     * @param package_id Id or name of the package
+     * @param purge      true to remove it completely with dataset_purge (sysadmins only), false to only mark it as
+     *                   deleted with package_delete
+     * @throws IOException Exception closing the connection, or CKAN returned an error
+     */
+    public void deletePackage(String package_id, boolean purge) throws IOException {
+        Gson gson = new Gson();
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("id", package_id);
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/" + (purge ? "dataset_purge" : "package_delete"));
+        postRequest.setEntity(new StringEntity(gson.toJson(request), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            throw new IOException("Error deleting package " + package_id + ", statusCode " + statusCode);
+        }
+        log.info("Package: " + package_id + (purge ? " purged" : " deleted"));
+        forget(metadataKey("package", package_id));
+    }
+
     /**
      * Method to create an empty dataset  using the CKAN API
      *
@@ -155,13 +624,12 @@ public class CKAN_API_Handler {
      * @param package_description
      * @param package_private
      * @param tags                Comma-separated String of tags to add to the dataset
-     * @throws IOException Exception parsing the result message or closing the connection
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the package
      */
     public void createPackage(String organization_id, String package_id, String package_description, boolean package_private, String tags) throws IOException {
 
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
-        String line;
 
         //Split <tags> by "," and for each element in the list generate a tag
         if (tags == null) {
@@ -200,28 +668,22 @@ public class CKAN_API_Handler {
         postRequest.setHeader("Accept", "application/json");
         postRequest.setHeader("Content-type", "application/json");
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
         sb.append(statusCode);
         sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        sb.append(response.getBody());
 
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
             log.error("Error creating the package via CKAN API. Package id: " + package_id);
             log.error(sb);
+            forgetIfNotFound(response, metadataKey("organization", organization_id));
+            throw new IOException("Error creating package " + package_id + ", statusCode " + statusCode);
         } else {
             log.info("Request returns statusCode 200: OK");
             log.info(sb);
+            cacheExisting(metadataKey("package", package_id));
         }
     }
 
@@ -242,7 +704,6 @@ public class CKAN_API_Handler {
 
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
-        String line;
         //Set the new dataset name and title
         dataset.setName(name);
         dataset.setTitle(name);
@@ -271,20 +732,11 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
         sb.append(statusCode);
         sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        sb.append(response.getBody());
 
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
@@ -303,7 +755,18 @@ public class CKAN_API_Handler {
      * @throws IOException Exception parsing the result message or closing the connection
      */
     public boolean organizationExists(String organization_id) throws IOException {
-        String line;
+        String key = metadataKey("organization", organization_id);
+        if (isCached(key)) {
+            return true;
+        }
+        boolean exists = lookupOrganization(organization_id);
+        if (exists) {
+            cacheExisting(key);
+        }
+        return exists;
+    }
+
+    private boolean lookupOrganization(String organization_id) throws IOException {
         StringBuilder sb = new StringBuilder();
         HttpPost postRequest;
 
@@ -315,18 +778,9 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        ApiResponse response = execute(postRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        sb.append(response.getBody());
 
         if (statusCode == 200) {
             log.info("Organization with id " + organization_id + " exists");
@@ -342,13 +796,12 @@ public class CKAN_API_Handler {
     /**
      * Method to create a new organization with the organization_id stored in the object
      *
-     * @throws IOException Exception parsing the result message or closing the connection
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the organization
      */
     public void createOrganization(String organization_id) throws IOException {
 
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
-        String line;
 
         HttpEntity reqEntity = MultipartEntityBuilder.create()
                 .addPart("name", new StringBody(organization_id, ContentType.TEXT_PLAIN))
@@ -360,27 +813,20 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
         sb.append(statusCode);
         sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        sb.append(response.getBody());
 
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
             log.error(sb);
+            throw new IOException("Error creating organization " + organization_id + ", statusCode " + statusCode);
         } else {
             log.info("Request returns statusCode 200: OK");
             log.info(sb);
+            cacheExisting(metadataKey("organization", organization_id));
         }
     }
 
@@ -390,16 +836,23 @@ public class CKAN_API_Handler {
      * @param resource         Resource previously created or gotten from the API
      * @param dataset_name     Id of the dataset to upload the resource to
      * @param resourceFileName New name of the resource
-     * @throws IOException Exception parsing the result message, getting the file in the resource or closing the connection
+     * @throws IOException Exception parsing the result message, getting the file in the resource, closing the connection or CKAN rejected the upload
      */
     public void uploadFilePojo(Resource resource, String dataset_name, String resourceFileName) throws IOException {
 
         URL url = new URL(resource.getUrl());
-        String tDir = System.getProperty("java.io.tmpdir");
-        String path = tDir + "/" + resourceFileName;
-        File file = new File(path);
-        file.deleteOnExit();
-        FileUtils.copyURLToFile(url, file);
+        //One directory per upload, so that packages backed up at the same time with equally named resources do not collide
+        File tDir = Files.createTempDirectory("ckan-upload").toFile();
+        File file = new File(tDir, resourceFileName);
+        try {
+            FileUtils.copyURLToFile(url, file);
+            uploadResourceFile(resource, dataset_name, resourceFileName, file);
+        } finally {
+            FileUtils.deleteQuietly(tDir);
+        }
+    }
+
+    private void uploadResourceFile(Resource resource, String dataset_name, String resourceFileName, File file) throws IOException {
 
         ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
         HttpPost postRequest;
@@ -428,31 +881,29 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
 
-        String line;
-        StringBuilder sb = new StringBuilder();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
-            log.error(sb.toString());
+            log.error(response.getBody());
+            forgetIfNotFound(response, metadataKey("package", dataset_name));
+            throw new IOException("Error uploading resource " + resourceFileName + " to dataset " + dataset_name + ", statusCode " + statusCode);
         } else log.info("Request returns statusCode 200: OK");
-        response.close();
-        httpclient.close();
     }
 
+    /**
+     * Upload a file as the resource of a package, replacing the file of the resource with the same name in the package
+     * if there is one
+     *
+     * @return true, once CKAN has accepted the file
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the file
+     */
     public Boolean createOrUpdateResource(String package_id, String resource_name, String resource_suffix_regex, String path, String resource_format) throws IOException {
         File file = new File(path);
         String filename = file.getName().replaceAll("[^\\.a-zA-Z0-9]+", "_");
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
-        String line;
 
         Gson gson = new Gson();
 
@@ -460,15 +911,13 @@ public class CKAN_API_Handler {
         postRequest = new HttpPost(HOST + "/api/action/resource_search?query=name:" + filename);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+        ApiResponse response = execute(postRequest, CallType.READ);
+        if (response.getStatusCode() != 200) {
+            log.error("statusCode =!=" + response.getStatusCode());
+            log.error(response.getBody());
+            throw new IOException("Error searching the resources named " + filename + ", statusCode " + response.getStatusCode());
         }
-        httpclient.close();
-        response.close();
+        sb.append(response.getBody());
 
         //Parse the response into a POJO to be able to get results from it.
         ResourceResponse resResponse = gson.fromJson(sb.toString(), ResourceResponse.class);
@@ -541,7 +990,7 @@ public class CKAN_API_Handler {
      *
      * @param path       Local path of the file to upload to the resource
      * @param resourceId Id of the resource to upload the file to
-     * @throws IOException Exception parsing the result message or closing the connection
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the file
      */
     private void updateFile(String path, String resourceId) throws IOException {
         File file = new File(path);
@@ -558,14 +1007,13 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        httpclient.close();
-        response.close();
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
 
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            throw new IOException("Error updating the file of resource " + resourceId + ", statusCode " + statusCode);
         } else log.info("Request returns statusCode 200: OK");
     }
 
@@ -573,14 +1021,13 @@ public class CKAN_API_Handler {
      * Function that uploads a file to CKAN through it's API
      *
      * @param path       Local filesystem path of the file to upload
-     * @throws IOException Exception parsing the result message or closing the connection
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the file
      */
     private void uploadFile(String package_id, String resource_name, String resource_suffix_regex, String path, String resource_format) throws IOException {
         File file = new File(path);
         SimpleDateFormat dateFormatGmt = new SimpleDateFormat(resource_suffix_regex);
         String date = dateFormatGmt.format(new Date());
         StringBuilder sb = new StringBuilder();
-        String line;
 
         HttpPost postRequest;
         HttpEntity reqEntity = MultipartEntityBuilder.create()
@@ -594,28 +1041,676 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
         sb.append(statusCode);
         sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        sb.append(response.getBody());
 
         if (statusCode != 200) {
             log.error("Error creating a resource: " + file.getName().split("\\.")[0] + "in package:" + package_id);
             log.error("statusCode =!=" + statusCode);
             log.error(sb);
+            forgetIfNotFound(response, metadataKey("package", package_id));
+            throw new IOException("Error creating resource " + resource_name + " in package " + package_id + ", statusCode " + statusCode);
         } else log.info("Request returns statusCode 200: OK");
     }
 
+    /**
+     * Create a DataStore table with the given columns, either in an existing resource or in a new resource of the package.
+     * Calling it again on a resource that already has a table adds the missing columns.
+     *
+     * @param package_id    Package where the resource is created when resource_id is null
+     * @param resource_name Name of the resource created when resource_id is null
+     * @param resource_id   Existing resource to add the table to, or null to create a new resource
+     * @param fields        Columns of the table
+     * @param primary_key   Columns forming the primary key, needed to upsert. May be empty
+     * @return The id of the resource holding the table, null if CKAN returned an error
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public String datastoreCreate(String package_id, String resource_name, String resource_id, List<DatastoreField> fields, List<String> primary_key) throws IOException {
+        Gson gson = new Gson();
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        if (resource_id != null) {
+            request.put("resource_id", resource_id);
+        } else {
+            Map<String, Object> resource = new LinkedHashMap<>();
+            resource.put("package_id", package_id);
+            resource.put("name", resource_name);
+            request.put("resource", resource);
+        }
+        request.put("fields", fields);
+        if (primary_key != null && !primary_key.isEmpty()) {
+            request.put("primary_key", primary_key);
+        }
+        //Tables filled by the datapusher are read-only unless forced
+        request.put("force", true);
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/datastore_create");
+        postRequest.setEntity(new StringEntity(gson.toJson(request), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error("Error creating the DataStore table of resource " + (resource_id != null ? resource_id : resource_name) + " in package " + package_id);
+            log.error(response.getBody());
+            return null;
+        }
+        log.info("Request returns statusCode 200: OK");
+        JsonObject result = new JsonParser().parse(response.getBody()).getAsJsonObject().getAsJsonObject("result");
+        return result.get("resource_id").getAsString();
+    }
+
+    /**
+     * Write a batch of records into the DataStore table of a resource
+     *
+     * @param resource_id Resource holding the table
+     * @param records     Records to write, as column name to value maps
+     * @param method      datastore_upsert method: upsert, insert or update
+     * @return true if CKAN accepted the batch
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean datastoreUpsert(String resource_id, List<Map<String, Object>> records, String method) throws IOException {
+        Gson gson = new Gson();
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("resource_id", resource_id);
+        request.put("method", method);
+        request.put("records", records);
+        request.put("force", true);
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/datastore_upsert");
+        postRequest.setEntity(new StringEntity(gson.toJson(request), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error("Error writing " + records.size() + " records into the DataStore of resource " + resource_id);
+            log.error(response.getBody());
+            return false;
+        }
+        log.debug("Wrote " + records.size() + " records into the DataStore of resource " + resource_id);
+        return true;
+    }
+
+    /**
+     * Add several resources, with their files, to an existing package in a single package_revise request, so that the
+     * package is written and indexed once and readers never see it with only part of the resources. Resources of kind
+     * REPLACE get their new file in the same request. On servers older than CKAN 2.9, which do not know
+     * package_revise, the resources are written one by one instead.
+     *
+     * @param package_id Name of the package the resources are added to
+     * @param resources  Resources to add or replace
+     * @return The written resources, in the same order as <code>resources</code>. When they are written one by one only
+     * the ones of kind STORED are returned, the others are null
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the change
+     */
+    public List<Resource> reviseResources(String package_id, List<ResourceUpload> resources) throws IOException {
+        return reviseResources(package_id, resources, null);
+    }
+
+    /**
+     * Called for every resource written by {@link #reviseResources(String, List, ResourceWritten)}, as soon as it is
+     * in CKAN
+     */
+    public interface ResourceWritten {
+        /**
+         * @param index    Position of the resource in the list given to reviseResources
+         * @param resource The written resource, null when resources are written one by one and it is not of kind STORED
+         */
+        void written(int index, Resource resource) throws IOException;
+    }
+
+    /**
+     * {@link #reviseResources(String, List)}, telling <code>listener</code> about every resource once it is written.
+     * With package_revise all of them are written by the single request; when written one by one, each is reported
+     * before the next one is sent, so the caller can record the progress of a write that fails partway.
+     *
+     * @param listener Told about every written resource, or null
+     */
+    public List<Resource> reviseResources(String package_id, List<ResourceUpload> resources, ResourceWritten listener) throws IOException {
+        List<Resource> written = new ArrayList<>();
+        if (resources.isEmpty()) {
+            return written;
+        }
+        if (Boolean.FALSE.equals(reviseSupported)) {
+            return createResources(package_id, resources, listener);
+        }
+        Gson gson = new Gson();
+
+        List<ResourceUpload> added = new ArrayList<>();
+        for (ResourceUpload resource : resources) {
+            if (resource.getKind() != ResourceUpload.Kind.REPLACE) {
+                added.add(resource);
+            }
+        }
+        List<Map<String, Object>> extend = new ArrayList<>();
+        for (ResourceUpload resource : added) {
+            extend.add(resource.toMap());
+        }
+        MultipartEntityBuilder multipart = MultipartEntityBuilder.create()
+                .addPart("match__name", new StringBody(package_id, ContentType.TEXT_PLAIN));
+        if (!extend.isEmpty()) {
+            multipart.addPart("update__resources__extend", new StringBody(gson.toJson(extend), ContentType.APPLICATION_JSON));
+        }
+        for (ResourceUpload resource : resources) {
+            if (resource.getKind() == ResourceUpload.Kind.REPLACE) {
+                //Existing resources are selected by id
+                multipart.addPart("update__resources__" + resource.getResourceId() + "__upload",
+                        new FileBody(resource.getFile(), ContentType.APPLICATION_OCTET_STREAM, resource.getName()));
+            } else if (resource.getKind() == ResourceUpload.Kind.FILE) {
+                //Negative indexes count from the end of the resource list, where the new resources are appended
+                multipart.addPart("update__resources__" + (added.indexOf(resource) - added.size()) + "__upload",
+                        new FileBody(resource.getFile(), ContentType.APPLICATION_OCTET_STREAM, resource.getName()));
+            }
+        }
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/package_revise");
+        postRequest.setEntity(multipart.build());
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode == 400 && response.getBody() != null && response.getBody().contains("Action name not known")) {
+            log.info("package_revise is not available, writing the resources of " + package_id + " one by one");
+            reviseSupported = false;
+            return createResources(package_id, resources, listener);
+        }
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            forgetIfNotFound(response, metadataKey("package", package_id));
+            throw new IOException("Error writing " + resources.size() + " resources to dataset " + package_id + ", statusCode " + statusCode);
+        }
+        reviseSupported = true;
+
+        JsonObject result = new JsonParser().parse(response.getBody()).getAsJsonObject().getAsJsonObject("result");
+        List<Resource> all = gson.fromJson(result.getAsJsonObject("package"), Package_.class).getResources();
+        List<Resource> appended = all.subList(all.size() - added.size(), all.size());
+        for (ResourceUpload resource : resources) {
+            if (resource.getKind() == ResourceUpload.Kind.REPLACE) {
+                Resource replaced = null;
+                for (Resource candidate : all) {
+                    if (resource.getResourceId().equals(candidate.getId())) {
+                        replaced = candidate;
+                    }
+                }
+                written.add(replaced);
+            } else {
+                written.add(appended.get(added.indexOf(resource)));
+            }
+        }
+        log.info(resources.size() + " resources written to dataset " + package_id);
+        if (listener != null) {
+            for (int i = 0; i < written.size(); i++) {
+                listener.written(i, written.get(i));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * The resource by resource fallback of {@link #reviseResources(String, List, ResourceWritten)}
+     */
+    private List<Resource> createResources(String package_id, List<ResourceUpload> resources, ResourceWritten listener) throws IOException {
+        List<Resource> written = new ArrayList<>();
+        for (ResourceUpload resource : resources) {
+            switch (resource.getKind()) {
+                case LINK:
+                    createLinkResource(package_id, resource.getName(), resource.getSource());
+                    written.add(null);
+                    break;
+                case FILE:
+                    uploadResourceFile(resource.getSource(), package_id, resource.getName(), resource.getFile());
+                    written.add(null);
+                    break;
+                case STORED:
+                    written.add(createUploadedResource(package_id, resource.getName(), resource.getSource()));
+                    break;
+                case REPLACE:
+                    replaceResourceFile(resource.getResourceId(), resource.getFile());
+                    written.add(null);
+                    break;
+            }
+            if (listener != null) {
+                listener.written(written.size() - 1, written.get(written.size() - 1));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Replace the file of a resource with resource_patch
+     *
+     * @throws IOException Exception closing the connection, or CKAN rejected the file
+     */
+    private void replaceResourceFile(String resource_id, File file) throws IOException {
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("id", new StringBody(resource_id, ContentType.TEXT_PLAIN))
+                .addPart("upload", new FileBody(file, ContentType.APPLICATION_OCTET_STREAM))
+                .build();
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/resource_patch");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            throw new IOException("Error replacing the file of resource " + resource_id + ", statusCode " + statusCode);
+        }
+    }
+
+    /**
+     * Create a resource that links to the file of <code>source</code> instead of holding a copy of it. The hash and
+     * size of the source are copied, so the link can later be checked against what the file was when linked.
+     *
+     * @param package_id Id or name of the package the resource is created in
+     * @param name       Name of the new resource
+     * @param source     Resource whose url, format, description, mimetype, hash and size are copied
+     * @throws IOException Exception closing the connection, or CKAN rejected the resource
+     */
+    public void createLinkResource(String package_id, String name, Resource source) throws IOException {
+        Gson gson = new Gson();
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("package_id", package_id);
+        request.put("name", name);
+        request.put("url", source.getUrl());
+        request.put("format", source.getFormat());
+        request.put("description", source.getDescription());
+        request.put("mimetype", source.getMimetype());
+        request.put("hash", source.getHash());
+        request.put("size", source.getSize());
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/resource_create");
+        postRequest.setEntity(new StringEntity(gson.toJson(request), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            forgetIfNotFound(response, metadataKey("package", package_id));
+            throw new IOException("Error creating link resource " + name + " in dataset " + package_id + ", statusCode " + statusCode);
+        }
+        log.info("Resource " + name + " of dataset " + package_id + " links to " + source.getUrl());
+    }
+
+    /**
+     * Create an uploaded resource without sending its file, for callers that put the file in the CKAN filestore
+     * themselves. The url is the file name, as CKAN stores it for uploads, and the hash and size of <code>source</code>
+     * are copied.
+     *
+     * @param package_id Id or name of the package the resource is created in
+     * @param name       Name of the new resource, also used as file name
+     * @param source     Resource whose format, description, mimetype, hash and size are copied
+     * @return The created resource, with the id its file has to be stored under
+     * @throws IOException Exception parsing the result message or closing the connection, or CKAN rejected the resource
+     */
+    public Resource createUploadedResource(String package_id, String name, Resource source) throws IOException {
+        Gson gson = new Gson();
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("package_id", package_id);
+        request.put("name", name);
+        request.put("url", name);
+        request.put("url_type", "upload");
+        request.put("format", source.getFormat());
+        request.put("description", source.getDescription());
+        request.put("mimetype", source.getMimetype());
+        request.put("hash", source.getHash());
+        request.put("size", source.getSize());
+
+        HttpPost postRequest = new HttpPost(HOST + "/api/3/action/resource_create");
+        postRequest.setEntity(new StringEntity(gson.toJson(request), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(postRequest, CallType.WRITE);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.error("statusCode =!=" + statusCode);
+            log.error(response.getBody());
+            forgetIfNotFound(response, metadataKey("package", package_id));
+            throw new IOException("Error creating resource " + name + " in dataset " + package_id + ", statusCode " + statusCode);
+        }
+        return gson.fromJson(response.getBody(), ResourceShowResponse.class).getResult();
+    }
+
+    /**
+     * Copy the file of <code>source</code> into a resource of <code>package_id</code>, streaming it from its url into
+     * the upload without going through the disk. The resource is created, or patched when <code>resource_id</code> is set.
+     *
+     * @param package_id  Id or name of the package the resource belongs to
+     * @param resource_id Id of the resource to patch, null to create a new one
+     * @param name        Name of the resource
+     * @param source      Resource whose file, format, description and mimetype are copied
+     * @return The response of CKAN when the resource was written
+     * @throws IOException Error downloading the file, uploading it, or CKAN rejected the upload
+     */
+    public String streamResource(String package_id, String resource_id, String name, Resource source) throws IOException {
+        HttpGet getRequest = new HttpGet(source.getUrl());
+        authorizeDownload(getRequest);
+        if (rateLimiter != null && source.getUrl().startsWith(HOST)) {
+            rateLimiter.acquireRead();
+        }
+        try (CloseableHttpClient httpclient = HttpClients.createDefault();
+             CloseableHttpResponse download = httpclient.execute(getRequest)) {
+            int downloadStatus = download.getStatusLine().getStatusCode();
+            if (downloadStatus != 200 || download.getEntity() == null) {
+                EntityUtils.consumeQuietly(download.getEntity());
+                throw new IOException("GET " + source.getUrl() + " returned statusCode " + downloadStatus);
+            }
+            ContentBody cbFile = new LengthAwareStreamBody(download.getEntity().getContent(), name, download.getEntity().getContentLength());
+
+            MultipartEntityBuilder multipart = MultipartEntityBuilder.create()
+                    .addPart("upload", cbFile)
+                    .addPart("name", new StringBody(name, ContentType.TEXT_PLAIN));
+            if (resource_id != null) {
+                multipart.addPart("id", new StringBody(resource_id, ContentType.TEXT_PLAIN));
+            } else {
+                multipart.addPart("package_id", new StringBody(package_id, ContentType.TEXT_PLAIN));
+            }
+            if (source.getFormat() != null) {
+                multipart.addPart("format", new StringBody(source.getFormat(), ContentType.TEXT_PLAIN));
+            }
+            if (source.getDescription() != null) {
+                multipart.addPart("description", new StringBody(source.getDescription(), ContentType.TEXT_PLAIN));
+            }
+            if (source.getMimetype() != null) {
+                multipart.addPart("mimetype", new StringBody(source.getMimetype().toString(), ContentType.TEXT_PLAIN));
+            }
+
+            HttpPost postRequest = new HttpPost(HOST + "/api/3/action/" + (resource_id != null ? "resource_patch" : "resource_create"));
+            postRequest.setEntity(multipart.build());
+            postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+            ApiResponse response = execute(postRequest, CallType.WRITE);
+            int statusCode = response.getStatusCode();
+            if (statusCode != 200) {
+                log.error("statusCode =!=" + statusCode);
+                log.error(response.getBody());
+                forgetIfNotFound(response, metadataKey("package", package_id));
+                throw new IOException("Error writing resource " + name + " to dataset " + package_id + ", statusCode " + statusCode);
+            }
+            log.info("Resource " + name + " of dataset " + package_id + " written from " + source.getUrl());
+            return response.getBody();
+        }
+    }
+
+    /**
+     * Method to get a resource by its id using resource_show
+     *
+     * @param resource_id Id of the resource
+     * @return Resource class with the metadata of the resource, null if not found
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public Resource showResource(String resource_id) throws IOException {
+        Gson gson = new Gson();
+
+        HttpGet getRequest = new HttpGet(HOST + "/api/3/action/resource_show?id=" + URLEncoder.encode(resource_id, "UTF-8"));
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        ApiResponse response = execute(getRequest, CallType.READ);
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            log.warn("Resource: " + resource_id + " not found, statusCode " + statusCode);
+            return null;
+        }
+        return gson.fromJson(response.getBody(), ResourceShowResponse.class).getResult();
+    }
+
+    /**
+     * Send a HEAD request to the url of a resource file, to know its length and whether it can be downloaded by ranges
+     *
+     * @param url Url of the resource file
+     * @return What the server told about the file
+     * @throws IOException Connection error, or the server answered with an error
+     */
+    public RemoteFile headResource(String url) throws IOException {
+        HttpHead headRequest = new HttpHead(url);
+        authorizeDownload(headRequest);
+        try (CloseableHttpClient httpclient = HttpClients.createDefault();
+             CloseableHttpResponse response = httpclient.execute(headRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                throw new IOException("HEAD " + url + " returned statusCode " + statusCode);
+            }
+            String contentLength = headerValue(response, "Content-Length");
+            String acceptRanges = headerValue(response, "Accept-Ranges");
+            return new RemoteFile(url,
+                    contentLength == null ? -1 : Long.parseLong(contentLength.trim()),
+                    acceptRanges != null && acceptRanges.toLowerCase().contains("bytes"));
+        }
+    }
+
+    /**
+     * Download a resource file, or a byte range of it, into <code>out</code>.
+     * <p>
+     * Downloads go through the read rate limit when the file is stored in this CKAN instance, but not through the
+     * circuit breaker or the concurrency limit: the file can live on another server, and the time taken depends on
+     * its size rather than on how loaded CKAN is.
+     *
+     * @param url  Url of the resource file
+     * @param from First byte to download, or -1 to download the whole file
+     * @param to   Last byte to download (inclusive), ignored when <code>from</code> is -1
+     * @param out  Stream the bytes are copied to, left open
+     * @return Number of bytes copied
+     * @throws IOException Connection error, the server answered with an error or ignored the range
+     */
+    public long downloadResource(String url, long from, long to, OutputStream out) throws IOException {
+        HttpGet getRequest = new HttpGet(url);
+        authorizeDownload(getRequest);
+        if (from >= 0) {
+            getRequest.setHeader("Range", "bytes=" + from + "-" + to);
+        }
+        if (rateLimiter != null && url.startsWith(HOST)) {
+            rateLimiter.acquireRead();
+        }
+        try (CloseableHttpClient httpclient = HttpClients.createDefault();
+             CloseableHttpResponse response = httpclient.execute(getRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            int expected = from >= 0 ? 206 : 200;
+            if (statusCode != expected || response.getEntity() == null) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new IOException("GET " + url + (from >= 0 ? " bytes " + from + "-" + to : "") + " returned statusCode " + statusCode);
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                return IOUtils.copyLarge(in, out);
+            }
+        }
+    }
+
+    /**
+     * Only send the api key to this CKAN instance, resource urls can point anywhere
+     */
+    private void authorizeDownload(HttpUriRequest request) {
+        if (request.getURI().toString().startsWith(HOST)) {
+            request.setHeader("X-CKAN-API-Key", api_key);
+        }
+    }
+
+    /**
+     * Send a request to CKAN and read the whole response. Reads are hedged when a {@link HedgePolicy} is set.
+     *
+     * @param request Request to send, with all its headers already set
+     * @param type    Whether the request only reads from CKAN or modifies it
+     * @return The status code and body of the response
+     * @throws IOException Connection error, or the circuit breaker is open
+     */
+    private ApiResponse execute(HttpUriRequest request, CallType type) throws IOException {
+        if (type == CallType.READ && hedgePolicy != null) {
+            return executeHedged(request);
+        }
+        return send(request, type);
+    }
+
+    /**
+     * Send a read and, if it has not answered after the hedge delay and the budget allows it, a duplicate of it.
+     * The first attempt to answer wins and the other one is aborted.
+     *
+     * @param request Read request to send
+     * @return The status code and body of the first response
+     * @throws IOException Connection error in every attempt, or the circuit breaker is open
+     */
+    private ApiResponse executeHedged(HttpUriRequest request) throws IOException {
+        hedgePolicy.onRead();
+        long start = System.nanoTime();
+        long hedgeDelay = hedgePolicy.getHedgeDelayNanos();
+        if (hedgeDelay < 0) {
+            ApiResponse response = send(request, CallType.READ);
+            hedgePolicy.recordLatency(System.nanoTime() - start);
+            return response;
+        }
+
+        CompletionService<ApiResponse> completion = new ExecutorCompletionService<>(hedgePolicy.getExecutor());
+        List<HttpUriRequest> attempts = new ArrayList<>();
+        attempts.add(request);
+        completion.submit(() -> send(request, CallType.READ));
+        try {
+            Future<ApiResponse> done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done == null && hedgePolicy.tryHedge()) {
+                HttpUriRequest hedge = copyRequest(request);
+                if (hedge != null) {
+                    log.debug("No answer from CKAN after " + TimeUnit.NANOSECONDS.toMillis(hedgeDelay) + " ms, hedging " + request.getURI());
+                    attempts.add(hedge);
+                    completion.submit(() -> send(hedge, CallType.READ));
+                }
+            }
+            for (int pending = attempts.size(); pending > 0; pending--) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                try {
+                    ApiResponse response = done.get();
+                    hedgePolicy.recordLatency(System.nanoTime() - start);
+                    return response;
+                } catch (ExecutionException e) {
+                    //Give the other attempt, if any, a chance to answer
+                    if (pending == 1) {
+                        throw unwrap(e);
+                    }
+                    done = null;
+                }
+            }
+            throw new IOException("No attempt answered for " + request.getURI());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for CKAN to answer " + request.getURI());
+        } finally {
+            for (HttpUriRequest attempt : attempts) {
+                attempt.abort();
+            }
+        }
+    }
+
+    /**
+     * Send a request to CKAN and read the whole response, going through the rate limiter and the circuit breaker if set.
+     * Connection errors, 5xx and 429 responses are counted as failures of the CKAN instance.
+     *
+     * @param request Request to send, with all its headers already set
+     * @param type    Whether the request only reads from CKAN or modifies it, to apply the right rate limit
+     * @return The status code and body of the response
+     * @throws IOException Connection error, or the circuit breaker is open
+     */
+    private ApiResponse send(HttpUriRequest request, CallType type) throws IOException {
+        //The breaker is asked first, calls it rejects do not use up the rate limits shared with the other processors
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new CircuitBreakerOpenException("Circuit breaker open for CKAN instance " + HOST + ", request not sent: " + request.getURI());
+        }
+        if (rateLimiter != null) {
+            try {
+                if (type == CallType.READ) {
+                    rateLimiter.acquireRead();
+                } else {
+                    rateLimiter.acquireWrite();
+                    if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                        rateLimiter.acquireUploadBytes(((HttpEntityEnclosingRequest) request).getEntity().getContentLength());
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.onCancelled();
+                }
+                throw e;
+            }
+        }
+        boolean healthy = false;
+        long start = System.nanoTime();
+        CloseableHttpClient httpclient = HttpClients.createDefault();
+        try (CloseableHttpResponse response = httpclient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+            healthy = statusCode < 500 && statusCode != 429;
+            return new ApiResponse(statusCode, body, headerValue(response, "ETag"), headerValue(response, "Last-Modified"));
+        } finally {
+            httpclient.close();
+            //A hedged attempt aborted because the other one answered says nothing about the health of CKAN
+            boolean aborted = request.isAborted();
+            if (concurrencyLimit != null && !aborted) {
+                concurrencyLimit.onSample(System.nanoTime() - start, healthy);
+            }
+            if (circuitBreaker != null) {
+                if (aborted) {
+                    //Not a probe that succeeded, a half-open breaker must not close on it
+                    circuitBreaker.onCancelled();
+                } else if (healthy) {
+                    circuitBreaker.onSuccess();
+                } else {
+                    circuitBreaker.onFailure();
+                }
+            }
+        }
+    }
+
+    /**
+     * Build a new request identical to <code>request</code>, to be sent as a hedge
+     *
+     * @return The copy, or null if the request cannot be sent twice
+     */
+    private static HttpUriRequest copyRequest(HttpUriRequest request) {
+        HttpRequestBase copy;
+        if (request instanceof HttpPost) {
+            HttpEntity entity = ((HttpPost) request).getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                return null;
+            }
+            HttpPost post = new HttpPost(request.getURI());
+            post.setEntity(entity);
+            copy = post;
+        } else if (request instanceof HttpGet) {
+            copy = new HttpGet(request.getURI());
+        } else {
+            return null;
+        }
+        copy.setHeaders(request.getAllHeaders());
+        return copy;
+    }
+
+    private static String headerValue(CloseableHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
     public void close() {
         try {
             httpclient.close();
@@ -623,4 +1718,55 @@ public class CKAN_API_Handler {
             log.error(e);
         }
     }
-}
+
+    /**
+     * Stream body that reports the length of the download it reads from, so the multipart upload can send a
+     * Content-Length instead of being chunked and the upload bandwidth limit can account for it
+     */
+    private static class LengthAwareStreamBody extends InputStreamBody {
+        private final long length;
+
+        LengthAwareStreamBody(InputStream in, String filename, long length) {
+            super(in, ContentType.APPLICATION_OCTET_STREAM, filename);
+            this.length = length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Status code, body and cache validators of a response already read from CKAN
+     */
+    private static class ApiResponse {
+        private final int statusCode;
+        private final String body;
+        private final String etag;
+        private final String lastModified;
+
+        ApiResponse(int statusCode, String body, String etag, String lastModified) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        String getBody() {
+            return body;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breaker guarding the calls made to one CKAN instance.
+ * <p>
+ * The outcome of the last calls is kept in a sliding window; once the failure rate of a full window reaches the
+ * configured threshold the breaker opens and every call is rejected until the open duration has elapsed. After that
+ * a limited number of probe calls are let through (half-open): if they succeed the breaker closes again, if any of
+ * them fails it opens for another period.
+ * <p>
+ * Breakers are shared by all the handlers and processors talking to the same host, see {@link #forHost(String)}.
+ */
+public class CircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private final String name;
+
+    private int windowSize = 20;
+    private double failureRateThreshold = 0.5;
+    private long openDurationMillis = 30000;
+    private int halfOpenProbes = 1;
+
+    private State state = State.CLOSED;
+    private boolean[] outcomes = new boolean[windowSize];
+    private int recorded;
+    private int position;
+    private int failures;
+    private long openedAt;
+    private int probesInFlight;
+    private int probesSucceeded;
+
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the breaker shared by every caller of the CKAN instance in <code>host</code>, creating it if needed
+     *
+     * @param host Base url of the CKAN instance
+     * @return The breaker for that host
+     */
+    public static CircuitBreaker forHost(String host) {
+        return BREAKERS.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * Change the settings of the breaker. Changing the window size resets the recorded outcomes.
+     *
+     * @param windowSize           Number of calls considered to compute the failure rate
+     * @param failureRateThreshold Failure rate (0..1] that opens the breaker
+     * @param openDurationMillis   Time the breaker stays open before letting probes through
+     * @param halfOpenProbes       Number of successful probes needed to close the breaker again
+     */
+    public synchronized void configure(int windowSize, double failureRateThreshold, long openDurationMillis, int halfOpenProbes) {
+        if (windowSize != this.windowSize) {
+            this.windowSize = windowSize;
+            resetWindow();
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    /**
+     * Check, without taking any permit, if a call would currently be rejected.
+     * Meant for processors to decide whether to yield before pulling a flowfile.
+     *
+     * @return true if calls are being rejected
+     */
+    public synchronized boolean isRejecting() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() - openedAt < openDurationMillis;
+            case HALF_OPEN:
+                return probesInFlight >= halfOpenProbes;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Ask for permission to make a call. Every granted call must be followed by {@link #onSuccess()} or
+     * {@link #onFailure()}.
+     *
+     * @return true if the call can be made
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDurationMillis) {
+                return false;
+            }
+            log.info("Circuit breaker for " + name + " is half-open, sending probes");
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probesSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) {
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+            if (++probesSucceeded >= halfOpenProbes) {
+                log.info("Circuit breaker for " + name + " closed");
+                state = State.CLOSED;
+                resetWindow();
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= windowSize && failures >= failureRateThreshold * windowSize) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Give back the permission of a call granted by {@link #allowRequest()} that was not made, or was aborted before
+     * it answered (a hedge whose twin answered first), without counting it as a success or a failure
+     */
+    public synchronized void onCancelled() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (recorded == windowSize) {
+            if (outcomes[position]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % windowSize;
+    }
+
+    private void open() {
+        log.warn("Circuit breaker for " + name + " opened, rejecting calls for " + openDurationMillis + " ms");
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void resetWindow() {
+        outcomes = new boolean[windowSize];
+        recorded = 0;
+        position = 0;
+        failures = 0;
+    }
+}
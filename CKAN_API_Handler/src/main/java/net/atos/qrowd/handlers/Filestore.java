@@ -0,0 +1,106 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * The files of the uploaded resources of a CKAN instance, read straight from its <code>ckan.storage_path</code> when
+ * it is on the same host or mounted. CKAN keeps the file of resource <code>id</code> in
+ * <code>storage_path/resources/id[0:3]/id[3:6]/id[6:]</code>.
+ */
+public class Filestore {
+
+    private final Logger log = Logger.getLogger(Filestore.class);
+
+    private final Path resources;
+    private final boolean hardLinks;
+
+    /**
+     * @param storagePath The ckan.storage_path of the CKAN instance
+     * @param hardLinks   Whether to hard link copies instead of copying bytes, when the filesystem allows it
+     */
+    public Filestore(String storagePath, boolean hardLinks) {
+        this.resources = Paths.get(storagePath, "resources");
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * @return Where CKAN keeps the file of the resource
+     */
+    public Path pathOf(String resource_id) {
+        if (resource_id == null || resource_id.length() <= 6) {
+            throw new IllegalArgumentException("Not a resource id: " + resource_id);
+        }
+        return resources.resolve(resource_id.substring(0, 3)).resolve(resource_id.substring(3, 6)).resolve(resource_id.substring(6));
+    }
+
+    /**
+     * @return true if the file of the resource is in the filestore
+     */
+    public boolean contains(String resource_id) {
+        return Files.isRegularFile(pathOf(resource_id));
+    }
+
+    /**
+     * Copy the file of a resource as the file of another one. Hard links are safe to share: CKAN writes a new file and
+     * renames it over the old one when a resource is updated, so the copy keeps the old content.
+     *
+     * @param from_id Resource whose file is copied
+     * @param to_id   Resource that gets the copy
+     * @return Size of the file in bytes
+     * @throws IOException The file could not be copied
+     */
+    public long copy(String from_id, String to_id) throws IOException {
+        Path source = pathOf(from_id);
+        Path target = pathOf(to_id);
+        Files.createDirectories(target.getParent());
+
+        if (hardLinks) {
+            try {
+                Files.deleteIfExists(target);
+                Files.createLink(target, source);
+                return Files.size(target);
+            } catch (UnsupportedOperationException | IOException e) {
+                //Different filesystems, or links not supported, copy the bytes instead
+                log.info("Cannot link " + target + " to " + source + ", copying it: " + e.getMessage());
+            }
+        }
+
+        //Copy next to the target and rename, CKAN never sees a half written file
+        Path temp = Files.createTempFile(target.getParent(), to_id.substring(6), ".part");
+        try {
+            long size;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings and statistics used to hedge the read calls to one CKAN instance: when a read has not answered after
+ * the configured percentile of the recent read latencies, a duplicate is sent and the first answer wins.
+ * The number of duplicates is capped to a fraction of the reads (the budget) so hedging cannot double the load
+ * on an already slow CKAN.
+ * <p>
+ * Policies are shared by every caller of the same host, see {@link #forHost(String)}.
+ */
+public class HedgePolicy {
+
+    private static final ConcurrentMap<String, HedgePolicy> POLICIES = new ConcurrentHashMap<>();
+
+    private static final int WINDOW_SIZE = 256;
+    //Do not hedge until there are enough samples to estimate the percentile
+    private static final int MIN_SAMPLES = 20;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "CKAN-hedged-read");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile double percentile = 0.95;
+    private volatile double budget = 0.1;
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int recorded;
+    private int position;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Get the policy shared by every caller of the CKAN instance in <code>host</code>, creating it if needed
+     *
+     * @param host Base url of the CKAN instance
+     * @return The policy for that host
+     */
+    public static HedgePolicy forHost(String host) {
+        return POLICIES.computeIfAbsent(host, key -> new HedgePolicy());
+    }
+
+    /**
+     * @param percentile Percentile (0..1) of the recent read latencies after which a duplicate is sent
+     * @param budget     Maximum fraction (0..1) of the reads that can be duplicated
+     */
+    public void configure(double percentile, double budget) {
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    /**
+     * @return Nanoseconds to wait for a read before sending a duplicate, or -1 if not enough reads were seen yet
+     */
+    public synchronized long getHedgeDelayNanos() {
+        if (recorded < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, recorded);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(recorded - 1, Math.ceil(percentile * recorded) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    public synchronized void recordLatency(long latencyNanos) {
+        latencies[position] = latencyNanos;
+        position = (position + 1) % WINDOW_SIZE;
+        recorded = Math.min(WINDOW_SIZE, recorded + 1);
+    }
+
+    /**
+     * Count a read going through this policy
+     */
+    public void onRead() {
+        reads.incrementAndGet();
+    }
+
+    /**
+     * Take a hedge from the budget
+     *
+     * @return true if a duplicate can be sent
+     */
+    public boolean tryHedge() {
+        while (true) {
+            long current = hedges.get();
+            if (current + 1 > budget * reads.get()) {
+                return false;
+            }
+            if (hedges.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    ExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+}
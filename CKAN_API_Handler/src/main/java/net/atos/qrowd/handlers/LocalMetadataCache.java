@@ -0,0 +1,117 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory {@link MetadataCache}, a bounded LRU whose entries expire after a time to live so that metadata deleted
+ * in CKAN by someone else is eventually looked up again.
+ * <p>
+ * Caches are shared by every handler using the same host and API key, see {@link #forEndpoint(String, String)},
+ * since what a key is allowed to see differs between keys.
+ */
+public class LocalMetadataCache implements MetadataCache {
+
+    private static final ConcurrentMap<String, LocalMetadataCache> CACHES = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final Map<String, Entry> entries;
+    private volatile long ttlMillis;
+
+    public LocalMetadataCache(final int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the cache shared by every caller of <code>host</code> with <code>apiKey</code>, creating it if needed
+     *
+     * @param host   Base url of the CKAN instance
+     * @param apiKey Api key used in the calls
+     * @return The cache for that host and key
+     */
+    public static LocalMetadataCache forEndpoint(String host, String apiKey) {
+        return CACHES.computeIfAbsent(host + "|" + apiKey, key -> new LocalMetadataCache(DEFAULT_MAX_ENTRIES, 60000));
+    }
+
+    /**
+     * Change the time to live of the entries, the last caller wins
+     */
+    public void configure(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.time >= ttlMillis) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        entries.put(key, new Entry(value, System.currentTimeMillis()));
+    }
+
+    @Override
+    public synchronized boolean putIfAbsent(String key, String value) {
+        if (get(key) != null) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(String key, String expected, String value) {
+        if (!expected.equals(get(key))) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    private static class Entry {
+        private final String value;
+        private final long time;
+
+        private Entry(String value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+}
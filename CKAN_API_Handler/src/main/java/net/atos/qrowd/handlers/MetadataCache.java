@@ -0,0 +1,49 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.io.IOException;
+
+/**
+ * Key-value cache of what the {@link CKAN_API_Handler} knows about CKAN metadata: which organizations and packages
+ * exist, and who is creating one. Implemented in memory by {@link LocalMetadataCache}, and by callers on top of a
+ * cache shared by several processes.
+ */
+public interface MetadataCache {
+
+    /**
+     * @return The value of the key, or null if it is not cached
+     */
+    String get(String key) throws IOException;
+
+    void put(String key, String value) throws IOException;
+
+    /**
+     * Store the value only if the key has none, atomically
+     *
+     * @return true if the value was stored, false if the key already had one
+     */
+    boolean putIfAbsent(String key, String value) throws IOException;
+
+    /**
+     * Store the value only if the key still has the expected one, atomically
+     *
+     * @return true if the value was stored, false if the key had another value or none
+     */
+    boolean replace(String key, String expected, String value) throws IOException;
+
+    void remove(String key) throws IOException;
+}
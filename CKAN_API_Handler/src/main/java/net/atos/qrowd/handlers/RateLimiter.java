@@ -0,0 +1,91 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Client-side rate limits for one CKAN instance and API key: a request budget for reads, another one for writes
+ * and a bandwidth budget for uploaded bytes. Limiters are shared by every handler in the JVM using the same
+ * host and key, see {@link #forEndpoint(String, String)}, so concurrent processors split the quota between them.
+ * A rate of 0 disables the corresponding limit.
+ */
+public class RateLimiter {
+
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private volatile TokenBucket reads;
+    private volatile TokenBucket writes;
+    private volatile TokenBucket uploadBytes;
+
+    /**
+     * Get the limiter shared by every caller of <code>host</code> with <code>apiKey</code>, creating it if needed
+     *
+     * @param host   Base url of the CKAN instance
+     * @param apiKey Api key used in the calls
+     * @return The limiter for that host and key
+     */
+    public static RateLimiter forEndpoint(String host, String apiKey) {
+        return LIMITERS.computeIfAbsent(host + "|" + apiKey, key -> new RateLimiter());
+    }
+
+    /**
+     * Change the limits. Buckets whose rate does not change keep their current state.
+     *
+     * @param readsPerSecond       Read requests per second, 0 for unlimited
+     * @param writesPerSecond      Write requests per second, 0 for unlimited
+     * @param uploadBytesPerSecond Uploaded bytes per second, 0 for unlimited
+     */
+    public synchronized void configure(double readsPerSecond, double writesPerSecond, long uploadBytesPerSecond) {
+        reads = reconfigure(reads, readsPerSecond);
+        writes = reconfigure(writes, writesPerSecond);
+        uploadBytes = reconfigure(uploadBytes, uploadBytesPerSecond);
+    }
+
+    public void acquireRead() throws InterruptedIOException {
+        TokenBucket bucket = reads;
+        if (bucket != null) {
+            bucket.acquire(1);
+        }
+    }
+
+    public void acquireWrite() throws InterruptedIOException {
+        TokenBucket bucket = writes;
+        if (bucket != null) {
+            bucket.acquire(1);
+        }
+    }
+
+    public void acquireUploadBytes(long bytes) throws InterruptedIOException {
+        TokenBucket bucket = uploadBytes;
+        if (bucket != null && bytes > 0) {
+            bucket.acquire(bytes);
+        }
+    }
+
+    private static TokenBucket reconfigure(TokenBucket current, double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            return null;
+        }
+        if (current != null && current.getPermitsPerSecond() == permitsPerSecond) {
+            return current;
+        }
+        //Allow up to one second worth of permits in a burst
+        return new TokenBucket(permitsPerSecond, permitsPerSecond);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+/**
+ * What a HEAD request tells about the file behind a resource url: its length, if known, and whether the server
+ * accepts byte range requests so it can be downloaded in parallel chunks.
+ */
+public class RemoteFile {
+
+    private final String url;
+    private final long length;
+    private final boolean acceptsRanges;
+
+    public RemoteFile(String url, long length, boolean acceptsRanges) {
+        this.url = url;
+        this.length = length;
+        this.acceptsRanges = acceptsRanges;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Length in bytes, or -1 if the server did not send it
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the length is known and the server answers <code>Range: bytes=</code> requests
+     */
+    public boolean acceptsRanges() {
+        return acceptsRanges && length > 0;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import net.atos.qrowd.pojos.Resource;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A resource to add to a package, or whose file to replace, with {@link CKAN_API_Handler#reviseResources}: its name,
+ * the resource its metadata is copied from and, for uploads, the local file to send.
+ */
+public class ResourceUpload {
+
+    /**
+     * What the new resource holds
+     */
+    public enum Kind {
+        /**
+         * A link to the url of the source resource
+         */
+        LINK,
+        /**
+         * An uploaded file, sent with the request
+         */
+        FILE,
+        /**
+         * An uploaded resource whose file is put in the filestore by the caller
+         */
+        STORED,
+        /**
+         * A new file for a resource already in the package
+         */
+        REPLACE
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final Resource source;
+    private final File file;
+    private final String resourceId;
+
+    private ResourceUpload(Kind kind, String name, Resource source, File file, String resourceId) {
+        this.kind = kind;
+        this.name = name;
+        this.source = source;
+        this.file = file;
+        this.resourceId = resourceId;
+    }
+
+    public static ResourceUpload link(String name, Resource source) {
+        return new ResourceUpload(Kind.LINK, name, source, null, null);
+    }
+
+    public static ResourceUpload file(String name, Resource source, File file) {
+        return new ResourceUpload(Kind.FILE, name, source, file, null);
+    }
+
+    public static ResourceUpload stored(String name, Resource source) {
+        return new ResourceUpload(Kind.STORED, name, source, null, null);
+    }
+
+    public static ResourceUpload replace(String resourceId, String name, File file) {
+        return new ResourceUpload(Kind.REPLACE, name, null, file, resourceId);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Resource getSource() {
+        return source;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Id of the resource whose file is replaced, null unless the kind is REPLACE
+     */
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * @return The fields of the new resource, as sent to CKAN. Not used for REPLACE
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("name", name);
+        switch (kind) {
+            case LINK:
+                resource.put("url", source.getUrl());
+                break;
+            case FILE:
+                resource.put("url", file.getName());
+                break;
+            case STORED:
+                resource.put("url", name);
+                resource.put("url_type", "upload");
+                break;
+        }
+        resource.put("format", source.getFormat());
+        resource.put("description", source.getDescription());
+        resource.put("mimetype", source.getMimetype());
+        if (kind != Kind.FILE) {
+            //Uploads get their hash and size from the file CKAN receives
+            resource.put("hash", source.getHash());
+            resource.put("size", source.getSize());
+        }
+        return resource;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded LRU cache of CKAN responses together with their ETag / Last-Modified validators, used to send
+ * conditional requests so that unchanged entities come back as 304 Not Modified without a body.
+ * <p>
+ * Caches are shared by every handler using the same host and API key, see {@link #forEndpoint(String, String)},
+ * since what a key is allowed to see differs between keys.
+ */
+public class ResponseCache {
+
+    private static final ConcurrentMap<String, ResponseCache> CACHES = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final Map<String, Entry> entries;
+
+    public ResponseCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the cache shared by every caller of <code>host</code> with <code>apiKey</code>, creating it if needed
+     *
+     * @param host   Base url of the CKAN instance
+     * @param apiKey Api key used in the calls
+     * @return The cache for that host and key
+     */
+    public static ResponseCache forEndpoint(String host, String apiKey) {
+        return CACHES.computeIfAbsent(host + "|" + apiKey, key -> new ResponseCache(DEFAULT_MAX_ENTRIES));
+    }
+
+    public synchronized Entry get(String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * Store a response, only if it carries a validator that can be sent back in a conditional request
+     */
+    public synchronized void put(String url, String etag, String lastModified, String body) {
+        if (etag == null && lastModified == null) {
+            entries.remove(url);
+        } else {
+            entries.put(url, new Entry(etag, lastModified, body));
+        }
+    }
+
+    public synchronized void invalidate(String url) {
+        entries.remove(url);
+    }
+
+    public static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final String body;
+
+        Entry(String etag, String lastModified, String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+}
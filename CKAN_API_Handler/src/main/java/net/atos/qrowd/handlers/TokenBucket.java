@@ -0,0 +1,85 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as a virtual schedule: the bucket only keeps the instant at which the
+ * next permit becomes free, and every caller reserves its permits with a compare-and-set on it.
+ * Callers are never rejected, they are told how long to wait so that the resulting throughput is smoothed
+ * to the configured rate, allowing bursts of up to <code>burst</code> permits after an idle period.
+ */
+public class TokenBucket {
+
+    private final double permitsPerSecond;
+    private final double nanosPerPermit;
+    private final long toleranceNanos;
+    private final AtomicLong nextFreeNanos;
+
+    /**
+     * @param permitsPerSecond Sustained rate of the bucket
+     * @param burst            Number of permits that can be taken at once without waiting
+     */
+    public TokenBucket(double permitsPerSecond, double burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.toleranceNanos = (long) (Math.max(1, burst) * nanosPerPermit);
+        this.nextFreeNanos = new AtomicLong(System.nanoTime());
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Reserve permits without waiting for them
+     *
+     * @param permits Number of permits to take
+     * @return Nanoseconds the caller must wait before using the permits, 0 if they are available now
+     */
+    public long reserve(long permits) {
+        long increment = (long) Math.ceil(permits * nanosPerPermit);
+        while (true) {
+            long now = System.nanoTime();
+            long nextFree = nextFreeNanos.get();
+            long newNextFree = Math.max(nextFree, now) + increment;
+            if (nextFreeNanos.compareAndSet(nextFree, newNextFree)) {
+                return Math.max(0, newNextFree - toleranceNanos - now);
+            }
+        }
+    }
+
+    /**
+     * Take permits, sleeping the calling thread until they are available
+     *
+     * @param permits Number of permits to take
+     * @throws InterruptedIOException The thread was interrupted while waiting
+     */
+    public void acquire(long permits) throws InterruptedIOException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the CKAN rate limit");
+            }
+        }
+    }
+}
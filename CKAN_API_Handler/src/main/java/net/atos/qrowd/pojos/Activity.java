@@ -0,0 +1,154 @@
+package net.atos.qrowd.pojos;
+
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class Activity {
+
+    @SerializedName("id")
+    @Expose
+    private String id;
+    @SerializedName("timestamp")
+    @Expose
+    private String timestamp;
+    @SerializedName("user_id")
+    @Expose
+    private String userId;
+    @SerializedName("object_id")
+    @Expose
+    private String objectId;
+    @SerializedName("activity_type")
+    @Expose
+    private String activityType;
+    @SerializedName("data")
+    @Expose
+    private JsonObject data;
+
+    /**
+     * No args constructor for use in serialization
+     * 
+     */
+    public Activity() {
+    }
+
+    /**
+     * 
+     * @param id
+     * @param timestamp
+     * @param userId
+     * @param objectId
+     * @param activityType
+     * @param data
+     */
+    public Activity(String id, String timestamp, String userId, String objectId, String activityType, JsonObject data) {
+        super();
+        this.id = id;
+        this.timestamp = timestamp;
+        this.userId = userId;
+        this.objectId = objectId;
+        this.activityType = activityType;
+        this.data = data;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Activity withId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(String timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Activity withTimestamp(String timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Activity withUserId(String userId) {
+        this.userId = userId;
+        return this;
+    }
+
+    public String getObjectId() {
+        return objectId;
+    }
+
+    public void setObjectId(String objectId) {
+        this.objectId = objectId;
+    }
+
+    public Activity withObjectId(String objectId) {
+        this.objectId = objectId;
+        return this;
+    }
+
+    public String getActivityType() {
+        return activityType;
+    }
+
+    public void setActivityType(String activityType) {
+        this.activityType = activityType;
+    }
+
+    public Activity withActivityType(String activityType) {
+        this.activityType = activityType;
+        return this;
+    }
+
+    public JsonObject getData() {
+        return data;
+    }
+
+    public void setData(JsonObject data) {
+        this.data = data;
+    }
+
+    public Activity withData(JsonObject data) {
+        this.data = data;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this).append("id", id).append("timestamp", timestamp).append("userId", userId).append("objectId", objectId).append("activityType", activityType).append("data", data).toString();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+package net.atos.qrowd.handlers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalMetadataCacheTest {
+
+    @Test
+    public void putIfAbsentKeepsTheFirstValue() {
+        LocalMetadataCache cache = new LocalMetadataCache(10, 60000);
+        assertTrue(cache.putIfAbsent("claim", "a"));
+        assertFalse(cache.putIfAbsent("claim", "b"));
+        assertEquals("a", cache.get("claim"));
+    }
+
+    @Test
+    public void replaceOnlyTheExpectedValue() {
+        LocalMetadataCache cache = new LocalMetadataCache(10, 60000);
+        assertFalse(cache.replace("claim", "a", "b"));
+        assertNull(cache.get("claim"));
+
+        cache.put("claim", "a");
+        assertTrue(cache.replace("claim", "a", "b"));
+        //A second waiter that saw the same stale claim loses
+        assertFalse(cache.replace("claim", "a", "c"));
+        assertEquals("b", cache.get("claim"));
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        LocalMetadataCache cache = new LocalMetadataCache(10, 50);
+        cache.put("package", "exists");
+        Thread.sleep(100);
+        assertNull(cache.get("package"));
+        assertFalse(cache.replace("package", "exists", "again"));
+    }
+}
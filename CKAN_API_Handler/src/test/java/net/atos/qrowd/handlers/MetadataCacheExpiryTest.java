@@ -0,0 +1,49 @@
+package net.atos.qrowd.handlers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheExpiryTest {
+
+    //Nothing listens there, a lookup that reaches CKAN fails
+    private static final String HOST = "http://localhost:1/metadata";
+
+    @Test
+    public void freshSharedEntriesAreTrusted() throws IOException {
+        LocalMetadataCache shared = new LocalMetadataCache(10, Long.MAX_VALUE);
+        shared.put("ckan|" + HOST + "|package|traffic", String.valueOf(System.currentTimeMillis()));
+        CKAN_API_Handler handler = new CKAN_API_Handler(HOST, "key");
+        handler.setMetadataCache(null, shared, 60000);
+        assertTrue(handler.packageExists("traffic"));
+        handler.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void expiredSharedEntriesAreLookedUpAgain() throws IOException {
+        LocalMetadataCache shared = new LocalMetadataCache(10, Long.MAX_VALUE);
+        shared.put("ckan|" + HOST + "|package|traffic", String.valueOf(System.currentTimeMillis() - 120000));
+        CKAN_API_Handler handler = new CKAN_API_Handler(HOST, "key");
+        handler.setMetadataCache(null, shared, 60000);
+        try {
+            handler.packageExists("traffic");
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void entriesWithoutTimeAreLookedUpAgain() throws IOException {
+        LocalMetadataCache shared = new LocalMetadataCache(10, Long.MAX_VALUE);
+        shared.put("ckan|" + HOST + "|package|traffic", "exists");
+        CKAN_API_Handler handler = new CKAN_API_Handler(HOST, "key");
+        handler.setMetadataCache(null, shared, 60000);
+        try {
+            handler.packageExists("traffic");
+        } finally {
+            handler.close();
+        }
+    }
+}
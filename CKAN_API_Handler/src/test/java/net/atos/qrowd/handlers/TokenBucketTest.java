@@ -0,0 +1,40 @@
+package net.atos.qrowd.handlers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstIsServedWithoutWaiting() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.reserve(1));
+        }
+    }
+
+    @Test
+    public void requestsOverTheBurstAreSpacedAtTheRate() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        assertEquals(0, bucket.reserve(1));
+        long wait = bucket.reserve(1);
+        //The second permit is due 100ms after the first one
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        long nextWait = bucket.reserve(1);
+        assertTrue(nextWait > wait);
+    }
+
+    @Test
+    public void largeReservationsWaitProportionally() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        assertEquals(0, bucket.reserve(1000));
+        long wait = bucket.reserve(500);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(450));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Retention policy for the timestamped backups made by CKAN_Package_Backup, applied separately to the backups of
+ * every package. A backup is kept if it is one of the <code>keepLast</code> newest, or the newest of one of the
+ * <code>keepDaily</code> most recent days, <code>keepWeekly</code> most recent ISO weeks or <code>keepMonthly</code>
+ * most recent months that have backups. Every other backup is expired.
+ */
+public class BackupRetention {
+
+    private static final Pattern BACKUP_NAME = Pattern.compile("^(.+?)(\\d{8}_\\d{6})$");
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    private final int keepLast;
+    private final int keepDaily;
+    private final int keepWeekly;
+    private final int keepMonthly;
+
+    public BackupRetention(int keepLast, int keepDaily, int keepWeekly, int keepMonthly) {
+        this.keepLast = keepLast;
+        this.keepDaily = keepDaily;
+        this.keepWeekly = keepWeekly;
+        this.keepMonthly = keepMonthly;
+    }
+
+    /**
+     * @return true if no backup can expire, every count is 0
+     */
+    public boolean keepsEverything() {
+        return keepLast == 0 && keepDaily == 0 && keepWeekly == 0 && keepMonthly == 0;
+    }
+
+    /**
+     * Find the backups to remove among <code>names</code>. Names that are not backups are ignored.
+     *
+     * @param names Package names, backups are named &lt;package&gt;&lt;yyyyMMdd_HHmmss&gt;
+     * @return The expired backups, oldest first
+     */
+    public List<String> expired(Collection<String> names) {
+        if (keepsEverything()) {
+            return new ArrayList<>();
+        }
+        //Backups of every package, newest first
+        Map<String, TreeMap<LocalDateTime, String>> backups = new TreeMap<>();
+        for (String name : names) {
+            Matcher matcher = BACKUP_NAME.matcher(name);
+            if (!matcher.matches()) {
+                continue;
+            }
+            try {
+                LocalDateTime time = LocalDateTime.parse(matcher.group(2), TIMESTAMP);
+                backups.computeIfAbsent(matcher.group(1), key -> new TreeMap<>(Comparator.reverseOrder())).put(time, name);
+            } catch (DateTimeParseException e) {
+                //Not a timestamp, so not a backup
+            }
+        }
+
+        List<String> expired = new ArrayList<>();
+        for (TreeMap<LocalDateTime, String> packageBackups : backups.values()) {
+            Set<LocalDateTime> kept = new HashSet<>();
+            int index = 0;
+            for (LocalDateTime time : packageBackups.keySet()) {
+                if (index++ < keepLast) {
+                    kept.add(time);
+                }
+            }
+            kept.addAll(newestPerPeriod(packageBackups.keySet(), keepDaily, time -> time.toLocalDate()));
+            kept.addAll(newestPerPeriod(packageBackups.keySet(), keepWeekly,
+                    time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100 + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)));
+            kept.addAll(newestPerPeriod(packageBackups.keySet(), keepMonthly, time -> time.getYear() * 100 + time.getMonthValue()));
+
+            List<String> packageExpired = new ArrayList<>();
+            for (Map.Entry<LocalDateTime, String> backup : packageBackups.entrySet()) {
+                if (!kept.contains(backup.getKey())) {
+                    packageExpired.add(0, backup.getValue());
+                }
+            }
+            expired.addAll(packageExpired);
+        }
+        return expired;
+    }
+
+    /**
+     * @param newestFirst Backup times, newest first
+     * @return The newest time of each of the <code>count</code> most recent periods
+     */
+    private static Set<LocalDateTime> newestPerPeriod(Collection<LocalDateTime> newestFirst, int count, Function<LocalDateTime, Object> period) {
+        Set<LocalDateTime> kept = new HashSet<>();
+        Set<Object> periods = new HashSet<>();
+        for (LocalDateTime time : newestFirst) {
+            if (periods.size() >= count) {
+                break;
+            }
+            if (periods.add(period.apply(time))) {
+                kept.add(time);
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.handlers.TokenBucket;
+import net.atos.qrowd.pojos.Package;
+import net.atos.qrowd.pojos.Package_;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@Tags({"ckan","backup","retention","purge","web service","request"})
+@CapabilityDescription("Nifi Processor that applies a retention policy to the timestamped backups made by CKAN_Package_Backup. The backup packages are "
+        + "found with a paged package_search, the policy (keep the last N backups, and the newest backup of the last days, weeks and months) is applied "
+        + "to the backups of every package, and the expired ones are purged several at a time under a rate limit. A JSON summary of the run is output.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.purge.expired", description = "Number of expired backups"),
+        @WritesAttribute(attribute = "ckan.purge.failed", description = "Number of expired backups that could not be removed"),
+        @WritesAttribute(attribute = "ckan.purge.dry_run", description = "true if nothing was removed"),
+        @WritesAttribute(attribute = "mime.type", description = "application/json")})
+public class CKAN_Backup_Purge extends AbstractProcessor {
+
+    private static final Pattern BACKUP_SUFFIX = Pattern.compile("\\d{8}_\\d{6}$");
+    private static final int PAGE_SIZE = 500;
+
+    private static final AllowableValue MODE_PURGE = new AllowableValue("dataset_purge", "dataset_purge",
+            "Remove the backups completely from the database and the search index. Needs a sysadmin Api Key");
+    private static final AllowableValue MODE_DELETE = new AllowableValue("package_delete", "package_delete",
+            "Only mark the backups as deleted, they stay in the database until purged from the trash");
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to purge")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor filter_query = new PropertyDescriptor
+            .Builder().name("filter_query")
+            .displayName("Filter query")
+            .description("Optional Solr filter query (fq) restricting the packages looked at, e.g. organization:my-org")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor keep_last = new PropertyDescriptor
+            .Builder().name("keep_last")
+            .displayName("Keep last")
+            .description("Number of most recent backups of every package that are always kept")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("7")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor keep_daily = new PropertyDescriptor
+            .Builder().name("keep_daily")
+            .displayName("Keep daily")
+            .description("Number of most recent days for which the newest backup of every package is kept")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor keep_weekly = new PropertyDescriptor
+            .Builder().name("keep_weekly")
+            .displayName("Keep weekly")
+            .description("Number of most recent weeks for which the newest backup of every package is kept")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor keep_monthly = new PropertyDescriptor
+            .Builder().name("keep_monthly")
+            .displayName("Keep monthly")
+            .description("Number of most recent months for which the newest backup of every package is kept")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor purge_mode = new PropertyDescriptor
+            .Builder().name("purge_mode")
+            .displayName("Purge mode")
+            .description("CKAN action used to remove the expired backups")
+            .allowableValues(MODE_PURGE, MODE_DELETE)
+            .defaultValue(MODE_PURGE.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor purge_workers = new PropertyDescriptor
+            .Builder().name("purge_workers")
+            .displayName("Purges in parallel")
+            .description("Maximum number of backups removed at the same time. The adaptive concurrency limit of the CKAN instance can lower it further.")
+            .addValidator(StandardValidators.createLongValidator(1, 64, true))
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor purge_rate_limit = new PropertyDescriptor
+            .Builder().name("purge_rate_limit")
+            .displayName("Purges per second")
+            .description("Maximum rate at which backups are removed, on top of the write rate limit shared with the other processors. 0 means no limit.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .defaultValue("2")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor dry_run = new PropertyDescriptor
+            .Builder().name("dry_run")
+            .displayName("Dry run")
+            .description("When true nothing is removed, the summary lists the backups that would be")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("Summary of a run in which every expired backup was removed")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Summary of a run in which some expired backups could not be removed")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService purgeExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(filter_query);
+        descriptors.add(keep_last);
+        descriptors.add(keep_daily);
+        descriptors.add(keep_weekly);
+        descriptors.add(keep_monthly);
+        descriptors.add(purge_mode);
+        descriptors.add(purge_workers);
+        descriptors.add(purge_rate_limit);
+        descriptors.add(dry_run);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final BackupRetention retention;
+        try {
+            retention = retention(context.getProperty(keep_last).asInteger(), context.getProperty(keep_daily).asInteger(),
+                    context.getProperty(keep_weekly).asInteger(), context.getProperty(keep_monthly).asInteger());
+        } catch (NumberFormatException e) {
+            //Already reported by the validators of the properties
+            return results;
+        }
+        if (retention.keepsEverything()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(keep_last.getDisplayName())
+                    .valid(false)
+                    .explanation("at least one of the keep counts must be greater than 0")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        purgeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN-backup-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (purgeExecutor != null) {
+            purgeExecutor.shutdownNow();
+            purgeExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        final String apiKey = context.getProperty(api_key).getValue();
+        final String fq = context.getProperty(filter_query).getValue();
+        final BackupRetention retention = retention(context.getProperty(keep_last).asInteger(), context.getProperty(keep_daily).asInteger(),
+                context.getProperty(keep_weekly).asInteger(), context.getProperty(keep_monthly).asInteger());
+        final boolean purge = MODE_PURGE.getValue().equals(context.getProperty(purge_mode).getValue());
+        final int workers = context.getProperty(purge_workers).asInteger();
+        final double purgeRate = context.getProperty(purge_rate_limit).asDouble();
+        final boolean dryRun = context.getProperty(dry_run).asBoolean();
+
+        /* *****************
+         * Main logic of the CKAN backup purge:
+         *  - Page through package_search collecting the names that end with a backup timestamp
+         *  - Apply the retention policy to the backups of every package
+         *  - Remove the expired backups from the purge executor, several at a time and under the purge rate
+         *  - Output a summary of the run
+         ******************** */
+
+        final AdaptiveConcurrencyLimit concurrencyLimit = AdaptiveConcurrencyLimit.forHost(url);
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        try {
+            List<String> backups = new ArrayList<>();
+            for (int start = 0; ; start += PAGE_SIZE) {
+                Package page = ckan_api_handler.searchPackages("*:*", fq, "name asc", PAGE_SIZE, start);
+                if (page.getPackages() == null || page.getPackages().isEmpty()) {
+                    break;
+                }
+                for (Package_ dataset : page.getPackages()) {
+                    if (BACKUP_SUFFIX.matcher(dataset.getName()).find()) {
+                        backups.add(dataset.getName());
+                    }
+                }
+                if (page.getPackages().size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            List<String> expired = retention.expired(backups);
+            getLogger().info("{} of {} backups expired in {}", new Object[]{expired.size(), backups.size(), url});
+            if (expired.isEmpty()) {
+                context.yield();
+                return;
+            }
+
+            Map<String, String> errors = dryRun ? new HashMap<>()
+                    : purge(ckan_api_handler, concurrencyLimit, circuitBreaker, expired, purge, workers, purgeRate);
+
+            JsonArray removed = new JsonArray();
+            JsonArray failed = new JsonArray();
+            for (String name : expired) {
+                if (errors.containsKey(name)) {
+                    JsonObject failure = new JsonObject();
+                    failure.addProperty("package", name);
+                    failure.addProperty("error", errors.get(name));
+                    failed.add(failure);
+                } else {
+                    removed.add(name);
+                }
+            }
+            JsonObject summary = new JsonObject();
+            summary.addProperty("backups", backups.size());
+            summary.addProperty("expired", expired.size());
+            summary.addProperty("dry_run", dryRun);
+            summary.add(dryRun ? "would_remove" : "removed", removed);
+            summary.add("failed", failed);
+            final byte[] content = new GsonBuilder().setPrettyPrinting().create().toJson(summary).getBytes(StandardCharsets.UTF_8);
+
+            FlowFile flowFile = session.create();
+            flowFile = session.write(flowFile, out -> out.write(content));
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.purge.expired", String.valueOf(expired.size()));
+            attributes.put("ckan.purge.failed", String.valueOf(errors.size()));
+            attributes.put("ckan.purge.dry_run", String.valueOf(dryRun));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            session.transfer(session.putAllAttributes(flowFile, attributes), errors.isEmpty() ? REL_SUCCESS : REL_FAILURE);
+        } catch (IOException | InterruptedException e) {
+            getLogger().error("Error while purging the backups of CKAN {}: {}", new Object[]{url, e.toString()});
+            context.yield();
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    /**
+     * Remove the expired backups from the purge executor, with at most <code>workers</code> in flight, only while
+     * the concurrency limit of the CKAN instance gives permits, and no faster than <code>purgeRate</code> per second
+     *
+     * @return The error of every backup that could not be removed, by name
+     */
+    private Map<String, String> purge(final CKAN_API_Handler ckan_api_handler, final AdaptiveConcurrencyLimit concurrencyLimit,
+                                      final CircuitBreaker circuitBreaker, final List<String> expired, final boolean purge,
+                                      final int workers, final double purgeRate) throws InterruptedException {
+        final TokenBucket purgeBucket = purgeRate > 0 ? new TokenBucket(purgeRate, Math.max(1, purgeRate)) : null;
+        final Map<String, String> errors = new ConcurrentHashMap<>();
+        for (String name : expired) {
+            errors.put(name, "not attempted");
+        }
+        Deque<String> pending = new ArrayDeque<>(expired);
+        CompletionService<String> completion = new ExecutorCompletionService<>(purgeExecutor);
+        int inFlight = 0;
+        while (inFlight > 0 || (!pending.isEmpty() && isScheduled() && !circuitBreaker.isRejecting())) {
+            while (!pending.isEmpty() && inFlight < workers && !circuitBreaker.isRejecting() && concurrencyLimit.tryAcquire()) {
+                final String name = pending.poll();
+                completion.submit(() -> {
+                    try {
+                        if (purgeBucket != null) {
+                            purgeBucket.acquire(1);
+                        }
+                        ckan_api_handler.deletePackage(name, purge);
+                        errors.remove(name);
+                    } catch (Exception e) {
+                        getLogger().error("Error while removing backup {}: {}", new Object[]{name, e.toString()});
+                        errors.put(name, e.toString());
+                    } finally {
+                        concurrencyLimit.release();
+                    }
+                    return name;
+                });
+                inFlight++;
+            }
+            //Also wakes up regularly when no permit could be taken, to try again
+            if (completion.poll(100, TimeUnit.MILLISECONDS) != null) {
+                inFlight--;
+            }
+        }
+        return errors;
+    }
+
+    private static BackupRetention retention(Integer keepLast, Integer keepDaily, Integer keepWeekly, Integer keepMonthly) {
+        return new BackupRetention(keepLast == null ? 0 : keepLast, keepDaily == null ? 0 : keepDaily,
+                keepWeekly == null ? 0 : keepWeekly, keepMonthly == null ? 0 : keepMonthly);
+    }
+}
@@ -16,16 +16,44 @@
 
 package net.atos.qrowd.processors.nifiCKANDatasetBackup;
 
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
 import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.CircuitBreakerOpenException;
+import net.atos.qrowd.handlers.Filestore;
+import net.atos.qrowd.handlers.HedgePolicy;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.handlers.RemoteFile;
+import net.atos.qrowd.handlers.ResourceUpload;
+import net.atos.qrowd.handlers.ResponseCache;
+import net.atos.qrowd.pojos.Package;
 import net.atos.qrowd.pojos.Package_;
 import net.atos.qrowd.pojos.Resource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.LogLevel;
 import org.apache.nifi.processor.*;
@@ -33,17 +61,66 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 @EventDriven
 @SupportsBatching
 @Tags({"ckan","backup","web service","request","local"})
-@CapabilityDescription("Nifi Processor that will look into CKAN for a package named as the filename of the flowfile. If not found, output flowfile to NOT_FOUND relationship. If found it will create a backup of the dataset and all its resources with a new name (dated/timestamped).")
+@CapabilityDescription("Nifi Processor that will look into CKAN for a package named as the filename of the flowfile. If not found, output flowfile to NOT_FOUND relationship. If found it will create a backup of the dataset and all its resources with a new name (dated/timestamped). "
+        + "In organization mode every package of an organization, and in list mode every package named in the flowfile content, is backed up, several at a time, and the flowfile is replaced by a JSON summary of the run.")
 @ReadsAttribute(attribute = "filename", description = "The filename to use when writing the FlowFile to disk.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.backup.organization", description = "Organization mode: the organization backed up"),
+        @WritesAttribute(attribute = "ckan.backup.packages", description = "Organization and list modes: number of packages in the organization or list"),
+        @WritesAttribute(attribute = "ckan.backup.failed", description = "Organization and list modes: number of packages that could not be backed up"),
+        @WritesAttribute(attribute = "ckan.backup.partition.node", description = "Partitioned mode: the node that backed up its share of the packages"),
+        @WritesAttribute(attribute = "ckan.backup.partition.members", description = "Partitioned mode: number of nodes sharing the packages"),
+        @WritesAttribute(attribute = "mime.type", description = "Organization and list modes: application/json")})
+@Stateful(scopes = Scope.LOCAL, description = "A checkpoint of every backup in progress: the name of the backup package and the ids of the "
+        + "resources already copied, so that a backup interrupted halfway is resumed instead of started again. "
+        + "In organization mode, also the start of the run of every organization being backed up, under the key organization/, and the outcome of its packages, under the key organization/package, "
+        + "and in list mode the same for every list being backed up, under the keys list/hash of the names/ and list/hash of the names/package")
 public class CKAN_Package_Backup extends AbstractProcessor {
 
+    //Backups are named after the original package with this timestamp appended, they are never backed up themselves
+    private static final Pattern BACKUP_SUFFIX = Pattern.compile("\\d{8}_\\d{6}$");
+    private static final int ORGANIZATION_PAGE_SIZE = 100;
+    private static final String CHECKPOINT_PREFIX = "checkpoint.";
+
+    private static final AllowableValue SCOPE_PACKAGE = new AllowableValue("package", "Package",
+            "Back up the package named in 'Name of the package to backup'");
+    private static final AllowableValue SCOPE_ORGANIZATION = new AllowableValue("organization", "Organization",
+            "Back up every package of the organization named in 'Organization', and output a summary of the run");
+    private static final AllowableValue SCOPE_LIST = new AllowableValue("list", "Package list",
+            "Back up every package named in the flowfile content, one name per line or a JSON array of names, and output a summary of the run");
+
+    private static final AllowableValue LOOKUP_SHOW = new AllowableValue("package_show", "package_show",
+            "Look packages up by name with package_show, a primary key lookup that sees packages as soon as they are created. "
+                    + "Unchanged packages are answered with 304 Not Modified when CKAN sends validators.");
+    private static final AllowableValue LOOKUP_SEARCH = new AllowableValue("package_search", "package_search",
+            "Look packages up with package_search?q=name:X, through the search index");
+
+    private static final AllowableValue COPY_UPLOAD = new AllowableValue("upload", "Copy every file",
+            "Download the file of every resource and upload it to the backup");
+    private static final AllowableValue COPY_LINK = new AllowableValue("link", "Link URL resources",
+            "Resources that point to an external url are backed up as a link to the same url, with their hash and size. "
+                    + "Files uploaded to CKAN are still copied, since they change when the original resource is updated");
+    private static final AllowableValue COPY_METADATA = new AllowableValue("metadata", "Link every resource",
+            "Every resource is backed up as a link to its current url, a point in time snapshot of the metadata only");
+
     private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
             .Builder().name("CKAN_url")
             .displayName("CKAN Url")
@@ -62,9 +139,44 @@ public class CKAN_Package_Backup extends AbstractProcessor {
     private static final PropertyDescriptor package_name = new PropertyDescriptor
             .Builder().name("package_name")
             .displayName("Name of the package to backup")
-            .description("Name of the package to be backed up")
+            .description("Name of the package to be backed up, for example ${filename} to take it from the flowfile")
             .addValidator(Validator.VALID)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor backup_scope = new PropertyDescriptor
+            .Builder().name("backup_scope")
+            .displayName("Backup scope")
+            .description("Whether to back up one package, a whole organization or the packages listed in the flowfile")
+            .allowableValues(SCOPE_PACKAGE, SCOPE_ORGANIZATION, SCOPE_LIST)
+            .required(true)
+            .defaultValue(SCOPE_PACKAGE.getValue())
+            .build();
+    private static final PropertyDescriptor organization = new PropertyDescriptor
+            .Builder().name("organization")
+            .displayName("Organization")
+            .description("Name of the organization whose packages are backed up, in organization scope")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor backup_workers = new PropertyDescriptor
+            .Builder().name("backup_workers")
+            .displayName("Packages in parallel")
+            .description("Maximum number of packages of an organization or list backed up at the same time, and per trigger. "
+                    + "The adaptive concurrency limit of the CKAN instance can lower it further.")
+            .addValidator(StandardValidators.createLongValidator(1, 64, true))
+            .required(true)
+            .defaultValue("4")
+            .build();
+    private static final PropertyDescriptor backup_run_expiration = new PropertyDescriptor
+            .Builder().name("backup_run_expiration")
+            .displayName("Backup run expiration")
+            .description("How long the outcome of the packages of an organization or list is kept to resume its run, counted from the start of the run. "
+                    + "Set it to the period at which the backups are scheduled, so that every scheduled run backs up all the packages again")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
             .required(true)
+            .defaultValue("1 day")
             .build();
     private static final PropertyDescriptor tag_list = new PropertyDescriptor
             .Builder().name("tag_list")
@@ -74,6 +186,203 @@ public class CKAN_Package_Backup extends AbstractProcessor {
             .required(false)
             .build();
 
+    private static final PropertyDescriptor resource_copy = new PropertyDescriptor
+            .Builder().name("resource_copy")
+            .displayName("Resource copy")
+            .description("How the resources are backed up: copying their files, or linking to them")
+            .allowableValues(COPY_UPLOAD, COPY_LINK, COPY_METADATA)
+            .required(true)
+            .defaultValue(COPY_UPLOAD.getValue())
+            .build();
+    private static final PropertyDescriptor verify_links = new PropertyDescriptor
+            .Builder().name("verify_links")
+            .displayName("Verify links")
+            .description("When resources are linked, check with a HEAD request that the url answers and, when the resource has a size, "
+                    + "that the length of the file is still the same. A resource that fails the check fails the backup")
+            .allowableValues("true", "false")
+            .required(true)
+            .defaultValue("true")
+            .build();
+
+    private static final PropertyDescriptor storage_path = new PropertyDescriptor
+            .Builder().name("storage_path")
+            .displayName("CKAN storage path")
+            .description("The ckan.storage_path of the CKAN instance, when it is on this host or mounted here. The files of uploaded resources "
+                    + "are then copied on disk and only their metadata goes through the API. Resources whose file is not found there are "
+                    + "uploaded as usual")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, false))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor storage_hard_links = new PropertyDescriptor
+            .Builder().name("storage_hard_links")
+            .displayName("Hard link stored files")
+            .description("Hard link the backup files to the originals instead of copying them, when they are on the same filesystem. "
+                    + "CKAN replaces the file of a resource when it is updated, so the backup keeps the old content")
+            .allowableValues("true", "false")
+            .required(true)
+            .defaultValue("true")
+            .build();
+
+    private static final PropertyDescriptor batch_resources = new PropertyDescriptor
+            .Builder().name("batch_resources")
+            .displayName("Add resources in one request")
+            .description("Add every resource of a backup with a single package_revise request, so the backup package is indexed once and "
+                    + "never seen half built. The files to upload are downloaded to local temporary files first. "
+                    + "On CKAN versions before 2.9 the resources are created one by one")
+            .allowableValues("true", "false")
+            .required(true)
+            .defaultValue("false")
+            .build();
+
+    private static final PropertyDescriptor circuit_breaker_failure_rate = new PropertyDescriptor
+            .Builder().name("circuit_breaker_failure_rate")
+            .displayName("Circuit breaker failure rate")
+            .description("Percentage of failed CKAN calls (connection errors, 5xx or 429 responses) within the window that opens the circuit breaker. "
+                    + "While the breaker is open the processor yields without taking flowfiles.")
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .required(true)
+            .defaultValue("50")
+            .build();
+    private static final PropertyDescriptor circuit_breaker_window = new PropertyDescriptor
+            .Builder().name("circuit_breaker_window")
+            .displayName("Circuit breaker window size")
+            .description("Number of most recent CKAN calls used to compute the failure rate")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("20")
+            .build();
+    private static final PropertyDescriptor circuit_breaker_open_duration = new PropertyDescriptor
+            .Builder().name("circuit_breaker_open_duration")
+            .displayName("Circuit breaker open duration")
+            .description("Time the circuit breaker stays open before letting a probe call through to check if CKAN has recovered")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("30 sec")
+            .build();
+    private static final PropertyDescriptor read_rate_limit = new PropertyDescriptor
+            .Builder().name("read_rate_limit")
+            .displayName("Read requests per second")
+            .description("Maximum rate of read requests sent to CKAN, shared by every processor using the same CKAN url and Api Key. "
+                    + "Requests over the rate wait for their turn instead of being rejected. 0 means no limit.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("0")
+            .build();
+    private static final PropertyDescriptor write_rate_limit = new PropertyDescriptor
+            .Builder().name("write_rate_limit")
+            .displayName("Write requests per second")
+            .description("Maximum rate of write requests (creations, updates, uploads) sent to CKAN, shared by every processor using the same CKAN url and Api Key. 0 means no limit.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("0")
+            .build();
+    private static final PropertyDescriptor upload_bandwidth_limit = new PropertyDescriptor
+            .Builder().name("upload_bandwidth_limit")
+            .displayName("Upload bandwidth per second")
+            .description("Maximum amount of data uploaded to CKAN per second, shared by every processor using the same CKAN url and Api Key. 0 B means no limit.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .defaultValue("0 B")
+            .build();
+    private static final PropertyDescriptor concurrency_limit_min = new PropertyDescriptor
+            .Builder().name("concurrency_limit_min")
+            .displayName("Minimum concurrent operations")
+            .description("Lowest value the adaptive concurrency limit of the CKAN instance can be cut to")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("1")
+            .build();
+    private static final PropertyDescriptor concurrency_limit_max = new PropertyDescriptor
+            .Builder().name("concurrency_limit_max")
+            .displayName("Maximum concurrent operations")
+            .description("Highest value the adaptive concurrency limit of the CKAN instance can grow to. "
+                    + "The limit is shared by every processor using the same CKAN url, and the processor yields when it is reached.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("32")
+            .build();
+    private static final PropertyDescriptor concurrency_latency_tolerance = new PropertyDescriptor
+            .Builder().name("concurrency_latency_tolerance")
+            .displayName("Latency tolerance")
+            .description("Ratio between the recent CKAN latency and its baseline above which the concurrency limit is reduced")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("2.0")
+            .build();
+    private static final PropertyDescriptor hedge_reads = new PropertyDescriptor
+            .Builder().name("hedge_reads")
+            .displayName("Hedge read requests")
+            .description("When enabled, a lookup in CKAN that has not answered after the hedge percentile of the recent lookup latencies "
+                    + "is sent a second time and the first answer is used. Write requests are never hedged.")
+            .allowableValues("true", "false")
+            .required(true)
+            .defaultValue("false")
+            .build();
+    private static final PropertyDescriptor hedge_percentile = new PropertyDescriptor
+            .Builder().name("hedge_percentile")
+            .displayName("Hedge percentile")
+            .description("Percentile of the recent lookup latencies after which a duplicate lookup is sent")
+            .addValidator(StandardValidators.createLongValidator(1, 99, true))
+            .required(true)
+            .defaultValue("95")
+            .build();
+    private static final PropertyDescriptor hedge_budget = new PropertyDescriptor
+            .Builder().name("hedge_budget")
+            .displayName("Hedge budget")
+            .description("Maximum percentage of lookups that can be duplicated, to cap the extra load put on CKAN")
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .required(true)
+            .defaultValue("10")
+            .build();
+    private static final PropertyDescriptor package_lookup = new PropertyDescriptor
+            .Builder().name("package_lookup")
+            .displayName("Package lookup")
+            .description("CKAN action used to find a package by its name")
+            .allowableValues(LOOKUP_SHOW, LOOKUP_SEARCH)
+            .required(true)
+            .defaultValue(LOOKUP_SHOW.getValue())
+            .build();
+
+    private static final PropertyDescriptor partition_members = new PropertyDescriptor
+            .Builder().name("partition_members")
+            .displayName("Partition members")
+            .description("Partitioned mode with a fixed cluster: comma separated ids of the nodes sharing the packages of the organization. "
+                    + "Every node backs up only the packages that fall on its part of a consistent-hash ring of the members")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor partition_cache = new PropertyDescriptor
+            .Builder().name("partition_cache")
+            .displayName("Partition membership cache")
+            .description("Partitioned mode with a changing cluster: distributed map cache where the running nodes send heartbeats. "
+                    + "The ring is made of the nodes seen within the heartbeat timeout, and rebalances when nodes join or leave")
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor partition_node_id = new PropertyDescriptor
+            .Builder().name("partition_node_id")
+            .displayName("Partition node id")
+            .description("Id of this node in the ring, by default its hostname. Must be unique in the cluster")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor partition_virtual_nodes = new PropertyDescriptor
+            .Builder().name("partition_virtual_nodes")
+            .displayName("Partition virtual nodes")
+            .description("Points of every node on the ring, more points spread the packages more evenly")
+            .addValidator(StandardValidators.createLongValidator(1, 1024, true))
+            .required(true)
+            .defaultValue("128")
+            .build();
+    private static final PropertyDescriptor partition_heartbeat_timeout = new PropertyDescriptor
+            .Builder().name("partition_heartbeat_timeout")
+            .displayName("Partition heartbeat timeout")
+            .description("How long a node stays in the ring after its last heartbeat. Heartbeats are sent three times per timeout while the processor runs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("1 min")
+            .build();
+
     private static final Relationship REL_BACKUP_CREATED = new Relationship.Builder()
             .name("BACKUP_SUCCESS")
             .description("Package found and backup successful")
@@ -92,6 +401,24 @@ public class CKAN_Package_Backup extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile RateLimiter rateLimiter;
+    private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+    private volatile HedgePolicy hedgePolicy;
+    private volatile String resourceCopy;
+    private volatile boolean verifyLinks;
+    private volatile Filestore filestore;
+    private volatile boolean batchResources;
+    private final AtomicLong reportedConcurrencyLimit = new AtomicLong();
+    private volatile ExecutorService backupExecutor;
+    private final Object stateLock = new Object();
+    private volatile String nodeId;
+    private volatile int virtualNodes;
+    private volatile PartitionMembership membership;
+    //Null when backups are not partitioned
+    private volatile ConsistentHashRing ring;
+    private volatile ScheduledExecutorService heartbeatExecutor;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
@@ -99,6 +426,33 @@ public class CKAN_Package_Backup extends AbstractProcessor {
         descriptors.add(api_key);
         descriptors.add(package_name);
         descriptors.add(tag_list);
+        descriptors.add(backup_scope);
+        descriptors.add(organization);
+        descriptors.add(backup_workers);
+        descriptors.add(backup_run_expiration);
+        descriptors.add(resource_copy);
+        descriptors.add(verify_links);
+        descriptors.add(storage_path);
+        descriptors.add(storage_hard_links);
+        descriptors.add(batch_resources);
+        descriptors.add(circuit_breaker_failure_rate);
+        descriptors.add(circuit_breaker_window);
+        descriptors.add(circuit_breaker_open_duration);
+        descriptors.add(read_rate_limit);
+        descriptors.add(write_rate_limit);
+        descriptors.add(upload_bandwidth_limit);
+        descriptors.add(concurrency_limit_min);
+        descriptors.add(concurrency_limit_max);
+        descriptors.add(concurrency_latency_tolerance);
+        descriptors.add(hedge_reads);
+        descriptors.add(hedge_percentile);
+        descriptors.add(hedge_budget);
+        descriptors.add(package_lookup);
+        descriptors.add(partition_members);
+        descriptors.add(partition_cache);
+        descriptors.add(partition_node_id);
+        descriptors.add(partition_virtual_nodes);
+        descriptors.add(partition_heartbeat_timeout);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -119,15 +473,187 @@ public class CKAN_Package_Backup extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final boolean organizationScope = SCOPE_ORGANIZATION.getValue().equals(context.getProperty(backup_scope).getValue());
+        final boolean listScope = SCOPE_LIST.getValue().equals(context.getProperty(backup_scope).getValue());
+        final PropertyDescriptor needed = organizationScope ? organization : package_name;
+        if (!listScope && !context.getProperty(needed).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(needed.getDisplayName())
+                    .valid(false)
+                    .explanation("it is required in " + context.getProperty(backup_scope).getValue() + " scope")
+                    .build());
+        }
+        if (!organizationScope && (context.getProperty(partition_members).isSet() || context.getProperty(partition_cache).isSet())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(partition_members.getDisplayName())
+                    .valid(false)
+                    .explanation("packages are partitioned in organization scope only")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        backupExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN-package-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        circuitBreaker = CircuitBreaker.forHost(context.getProperty(CKAN_url).getValue());
+        circuitBreaker.configure(context.getProperty(circuit_breaker_window).asInteger(),
+                context.getProperty(circuit_breaker_failure_rate).asInteger() / 100.0,
+                context.getProperty(circuit_breaker_open_duration).asTimePeriod(TimeUnit.MILLISECONDS),
+                1);
+
+        rateLimiter = RateLimiter.forEndpoint(context.getProperty(CKAN_url).getValue(), context.getProperty(api_key).getValue());
+        rateLimiter.configure(context.getProperty(read_rate_limit).asDouble(),
+                context.getProperty(write_rate_limit).asDouble(),
+                context.getProperty(upload_bandwidth_limit).asDataSize(DataUnit.B).longValue());
+
+        concurrencyLimit = AdaptiveConcurrencyLimit.forHost(context.getProperty(CKAN_url).getValue());
+        concurrencyLimit.configure(context.getProperty(concurrency_limit_min).asInteger(),
+                context.getProperty(concurrency_limit_max).asInteger(),
+                context.getProperty(concurrency_latency_tolerance).asDouble());
+
+        if (context.getProperty(hedge_reads).asBoolean()) {
+            hedgePolicy = HedgePolicy.forHost(context.getProperty(CKAN_url).getValue());
+            hedgePolicy.configure(context.getProperty(hedge_percentile).asInteger() / 100.0,
+                    context.getProperty(hedge_budget).asInteger() / 100.0);
+        } else {
+            hedgePolicy = null;
+        }
+
+        resourceCopy = context.getProperty(resource_copy).getValue();
+        verifyLinks = context.getProperty(verify_links).asBoolean();
+        if (context.getProperty(storage_path).isSet()) {
+            filestore = new Filestore(context.getProperty(storage_path).getValue(), context.getProperty(storage_hard_links).asBoolean());
+        } else {
+            filestore = null;
+        }
+        batchResources = context.getProperty(batch_resources).asBoolean();
+
+        nodeId = context.getProperty(partition_node_id).isSet()
+                ? context.getProperty(partition_node_id).getValue()
+                : InetAddress.getLocalHost().getHostName();
+        virtualNodes = context.getProperty(partition_virtual_nodes).asInteger();
+        if (context.getProperty(partition_cache).isSet()) {
+            final long timeout = context.getProperty(partition_heartbeat_timeout).asTimePeriod(TimeUnit.MILLISECONDS);
+            //The processor has the same id on every node of the cluster
+            membership = new PartitionMembership(context.getProperty(partition_cache).asControllerService(DistributedMapCacheClient.class),
+                    "ckan.backup.members." + getIdentifier(), timeout);
+            try {
+                ring = null;
+                refreshRing();
+            } catch (IOException e) {
+                //Back up everything until the cache answers, overlapping with the other nodes rather than missing packages
+                getLogger().warn("Could not reach the partition membership cache, backing up every package until it answers: {}", new Object[]{e.toString()});
+                ring = new ConsistentHashRing(Collections.singleton(nodeId), virtualNodes);
+            }
+            heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CKAN-partition-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeatExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    refreshRing();
+                } catch (IOException e) {
+                    getLogger().warn("Could not send the partition heartbeat: {}", new Object[]{e.toString()});
+                }
+            }, timeout / 3, timeout / 3, TimeUnit.MILLISECONDS);
+        } else if (context.getProperty(partition_members).isSet()) {
+            membership = null;
+            Set<String> members = new TreeSet<>();
+            for (String member : context.getProperty(partition_members).getValue().split(",")) {
+                if (!member.trim().isEmpty()) {
+                    members.add(member.trim());
+                }
+            }
+            if (!members.contains(nodeId)) {
+                getLogger().warn("Node {} is not one of the partition members {}, it will not back up any package", new Object[]{nodeId, members});
+            }
+            ring = new ConsistentHashRing(members, virtualNodes);
+        } else {
+            membership = null;
+            ring = null;
+        }
+    }
+
+    /**
+     * Send a heartbeat and rebuild the ring if the members changed
+     */
+    private void refreshRing() throws IOException {
+        final PartitionMembership membership = this.membership;
+        if (membership == null) {
+            return;
+        }
+        Set<String> members = membership.heartbeat(nodeId);
+        ConsistentHashRing current = ring;
+        if (current == null || !current.getMembers().equals(new ArrayList<>(members))) {
+            getLogger().info("Partitioning the backups across {} nodes: {}", new Object[]{members.size(), members});
+            ring = new ConsistentHashRing(members, virtualNodes);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (backupExecutor != null) {
+            backupExecutor.shutdownNow();
+            backupExecutor = null;
+        }
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+            heartbeatExecutor = null;
+        }
+        if (membership != null) {
+            //Hand the packages of this node over to the others now rather than after the timeout
+            try {
+                membership.leave(nodeId);
+            } catch (IOException e) {
+                getLogger().warn("Could not leave the partition ring: {}", new Object[]{e.toString()});
+            }
+            membership = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        //Do not take flowfiles while CKAN is known to be failing, let the breaker cool down instead
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        //Organizations and lists take a permit per package in backupAll, holding one here as well could leave none
+        //for the workers and the run waiting forever at a limit of 1
+        final boolean perPackagePermits = !SCOPE_PACKAGE.getValue().equals(context.getProperty(backup_scope).getValue());
+        //Respect the adaptive concurrency limit of the CKAN instance by yielding instead of blocking the thread
+        if (!perPackagePermits && !concurrencyLimit.tryAcquire()) {
+            context.yield();
+            return;
+        }
+        try {
+            backupFlowFile(context, session);
+        } finally {
+            if (!perPackagePermits) {
+                concurrencyLimit.release();
+            }
+            reportConcurrencyLimit(session);
+        }
+    }
+
+    private void backupFlowFile(final ProcessContext context, final ProcessSession session) {
         FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
         }
 
         //Get the package name to be backed up from the properties
-        String packageName = context.getProperty(package_name).getValue();
+        String packageName = context.getProperty(package_name).evaluateAttributeExpressions(flowFile).getValue();
 
         String url = context.getProperty(CKAN_url).getValue();
         final String apiKey = context.getProperty(api_key).getValue();
@@ -145,39 +671,34 @@ public class CKAN_Package_Backup extends AbstractProcessor {
          ******************** */
 
         CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(rateLimiter);
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        ckan_api_handler.setHedgePolicy(hedgePolicy);
+        if (LOOKUP_SHOW.getValue().equals(context.getProperty(package_lookup).getValue())) {
+            ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+            ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(url, apiKey));
+        }
         try{
+            if (SCOPE_ORGANIZATION.getValue().equals(context.getProperty(backup_scope).getValue())) {
+                backupOrganization(context, session, flowFile, ckan_api_handler);
+                ckan_api_handler.close();
+                session.commit();
+                return;
+            }
+            if (SCOPE_LIST.getValue().equals(context.getProperty(backup_scope).getValue())) {
+                backupList(context, session, flowFile, ckan_api_handler);
+                ckan_api_handler.close();
+                session.commit();
+                return;
+            }
             getLogger().info("Getting the information of package with name: {}",new Object[]{packageName});
             Package_ dataset = ckan_api_handler.getPackageByName(packageName);
             //When package cannot be found on CKAN, returns null
             if(dataset!=null)
             {
                 //if found...
-                // get the resources linked to this dataset
-                List<Resource> resourceList = dataset.getResources();
-
-                //Format the date to something compatible with the CKAN name restrictions (alphanumeric or these symbols: -_ )
-                DateTimeFormatter formatter= DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
-                String timeStamp = LocalDateTime.now().format(formatter);
-
-                String datasetName = dataset.getName()+timeStamp;
-
-                getLogger().info("Creating the package: {}", new Object[]{datasetName});
-                //Create the new timestamped package
-                ckan_api_handler.createPackagePojoNoResources(dataset,datasetName,tagList);
-
-                //Check when the list of resources of the package is empty
-                if(resourceList.size()>0) {
-                    //For each resource, create a timestamped backup in the previous package
-                    for (Resource res : resourceList) {
-                        String fileExtension = res.getName().split("\\.")[1];
-                        String fileName = res.getName().split("\\.")[0];
-
-                        String resourceFileName = fileName+timeStamp+"."+fileExtension;
-
-                        getLogger().info("Uploading to dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
-                        ckan_api_handler.uploadFilePojo(res, datasetName, resourceFileName);
-                    }
-                }
+                backupPackage(context.getStateManager(), ckan_api_handler, dataset, tagList);
                 //Transfer the input file through success relationship
                 session.transfer(flowFile, REL_BACKUP_CREATED);
                 ckan_api_handler.close();
@@ -189,6 +710,12 @@ public class CKAN_Package_Backup extends AbstractProcessor {
             }
             session.commit();
             getLogger().info("Processor finished completely");
+        }catch(CircuitBreakerOpenException cboe) {
+            getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, cboe.getMessage()});
+            ckan_api_handler.close();
+            session.rollback();
+            context.yield();
+            return;
         }catch(IOException ioe) {
             getLogger().log(LogLevel.ERROR, "Error while using the CKAN API");
             getLogger().error(ioe.toString());
@@ -206,4 +733,535 @@ public class CKAN_Package_Backup extends AbstractProcessor {
         }
         session.commit();
     }
+
+    /**
+     * Create a timestamped copy of a package and of all its resources.
+     * <p>
+     * The name of the copy and the ids of the resources already copied are checkpointed in the state as the backup
+     * goes on. If a checkpoint is found for the package and its backup package still exists, the backup is resumed:
+     * the same timestamp is kept and only the resources not copied yet are uploaded. The checkpoint is removed once
+     * every resource is copied.
+     *
+     * @return Name of the backup package
+     * @throws IOException Error using the CKAN API
+     * @throws ArrayIndexOutOfBoundsException A resource name contains no '.'
+     */
+    private String backupPackage(final StateManager stateManager, final CKAN_API_Handler ckan_api_handler, final Package_ dataset,
+                                 final String tagList) throws IOException {
+        //createPackagePojoNoResources renames the pojo and drops its resources, keep what is needed first
+        final String packageName = dataset.getName();
+        final List<Resource> resourceList = dataset.getResources();
+        final String targetKey = CHECKPOINT_PREFIX + packageName + ".target";
+        final String copiedKey = CHECKPOINT_PREFIX + packageName + ".copied";
+
+        Map<String, String> checkpoint = stateManager.getState(Scope.LOCAL).toMap();
+        String datasetName = checkpoint.get(targetKey);
+        final Set<String> copied = new LinkedHashSet<>();
+        String timeStamp;
+        if (datasetName != null && ckan_api_handler.packageExists(datasetName)) {
+            timeStamp = datasetName.substring(packageName.length());
+            if (checkpoint.get(copiedKey) != null && !checkpoint.get(copiedKey).isEmpty()) {
+                copied.addAll(Arrays.asList(checkpoint.get(copiedKey).split(",")));
+            }
+            getLogger().info("Resuming the backup {} of package {}, {} resources already copied", new Object[]{datasetName, packageName, copied.size()});
+        } else {
+            //Format the date to something compatible with the CKAN name restrictions (alphanumeric or these symbols: -_ )
+            DateTimeFormatter formatter= DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+            timeStamp = LocalDateTime.now().format(formatter);
+            datasetName = packageName+timeStamp;
+
+            //Checkpoint before creating, a package created but not recorded would be left behind by the next attempt
+            final String target = datasetName;
+            updateState(stateManager, state -> {
+                state.put(targetKey, target);
+                state.remove(copiedKey);
+            });
+            getLogger().info("Creating the package: {}", new Object[]{datasetName});
+            //Create the new timestamped package
+            ckan_api_handler.createPackagePojoNoResources(dataset,datasetName,tagList);
+        }
+
+        //Check when the list of resources of the package is empty
+        if (batchResources && resourceList != null && resourceList.size()>0) {
+            backupResources(stateManager, ckan_api_handler, resourceList, copied, copiedKey, datasetName, timeStamp);
+        } else if(resourceList != null && resourceList.size()>0) {
+            //For each resource, create a timestamped backup in the previous package
+            for (Resource res : resourceList) {
+                if (copied.contains(res.getId())) {
+                    continue;
+                }
+                String fileExtension = res.getName().split("\\.")[1];
+                String fileName = res.getName().split("\\.")[0];
+
+                String resourceFileName = fileName+timeStamp+"."+fileExtension;
+
+                if (isLinked(res)) {
+                    if (verifyLinks) {
+                        verifyLink(ckan_api_handler, res);
+                    }
+                    getLogger().info("Linking from dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
+                    ckan_api_handler.createLinkResource(datasetName, resourceFileName, res);
+                } else if (isStored(res)) {
+                    getLogger().info("Copying in the filestore to dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
+                    copyStored(ckan_api_handler, res, datasetName, resourceFileName);
+                } else {
+                    getLogger().info("Uploading to dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
+                    ckan_api_handler.uploadFilePojo(res, datasetName, resourceFileName);
+                }
+
+                copied.add(res.getId());
+                final String copiedIds = String.join(",", copied);
+                updateState(stateManager, state -> state.put(copiedKey, copiedIds));
+            }
+        }
+        updateState(stateManager, state -> {
+            state.remove(targetKey);
+            state.remove(copiedKey);
+        });
+        return datasetName;
+    }
+
+    /**
+     * Back up the resources not copied yet with a single package_revise request. Files that are uploaded are
+     * downloaded to a temporary directory first, files in the filestore are copied once their resources exist.
+     * Every resource is checkpointed as soon as it is written, also when CKAN is too old for package_revise and
+     * they are written one by one, so a backup failing partway is resumed without duplicating resources.
+     *
+     * @param copied    Ids of the resources already copied, the ones backed up are added
+     * @param copiedKey Key of the state where <code>copied</code> is checkpointed
+     */
+    private void backupResources(final StateManager stateManager, final CKAN_API_Handler ckan_api_handler, final List<Resource> resourceList,
+                                 final Set<String> copied, final String copiedKey, final String datasetName, final String timeStamp) throws IOException {
+        Path tempDir = Files.createTempDirectory("ckan-backup");
+        try {
+            List<ResourceUpload> uploads = new ArrayList<>();
+            List<Resource> sources = new ArrayList<>();
+            for (Resource res : resourceList) {
+                if (copied.contains(res.getId())) {
+                    continue;
+                }
+                String fileExtension = res.getName().split("\\.")[1];
+                String fileName = res.getName().split("\\.")[0];
+                String resourceFileName = fileName+timeStamp+"."+fileExtension;
+
+                if (isLinked(res)) {
+                    if (verifyLinks) {
+                        verifyLink(ckan_api_handler, res);
+                    }
+                    uploads.add(ResourceUpload.link(resourceFileName, res));
+                } else if (isStored(res)) {
+                    uploads.add(ResourceUpload.stored(resourceFileName, res));
+                } else {
+                    //One directory per resource, equally named resources do not collide
+                    Path file = Files.createDirectory(tempDir.resolve(String.valueOf(uploads.size()))).resolve(resourceFileName);
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        ckan_api_handler.downloadResource(res.getUrl(), -1, -1, out);
+                    }
+                    uploads.add(ResourceUpload.file(resourceFileName, res, file.toFile()));
+                }
+                sources.add(res);
+            }
+
+            getLogger().info("Adding {} resources to dataset: {}", new Object[]{uploads.size(), datasetName});
+            ckan_api_handler.reviseResources(datasetName, uploads, (i, created) -> {
+                ResourceUpload upload = uploads.get(i);
+                if (upload.getKind() == ResourceUpload.Kind.STORED) {
+                    try {
+                        filestore.copy(upload.getSource().getId(), created.getId());
+                    } catch (IOException e) {
+                        getLogger().warn("Cannot copy resource {} in the filestore, uploading it: {}", new Object[]{upload.getSource().getId(), e.getMessage()});
+                        ckan_api_handler.streamResource(datasetName, created.getId(), upload.getName(), upload.getSource());
+                    }
+                }
+                copied.add(sources.get(i).getId());
+                final String copiedIds = String.join(",", copied);
+                updateState(stateManager, state -> state.put(copiedKey, copiedIds));
+            });
+        } finally {
+            FileUtils.deleteQuietly(tempDir.toFile());
+        }
+    }
+
+    /**
+     * Whether a resource is backed up as a link to its url instead of a copy of its file
+     */
+    private boolean isLinked(final Resource resource) {
+        if (COPY_METADATA.getValue().equals(resourceCopy)) {
+            return true;
+        }
+        return COPY_LINK.getValue().equals(resourceCopy) && !"upload".equals(resource.getUrlType());
+    }
+
+    /**
+     * Whether the file of a resource can be copied straight from the CKAN filestore
+     */
+    private boolean isStored(final Resource resource) {
+        return filestore != null && "upload".equals(resource.getUrlType()) && filestore.contains(resource.getId());
+    }
+
+    /**
+     * Create the backup resource through the API and copy its file on disk. If the copy fails, the file is sent
+     * through the API instead, so the resource is never left without its file.
+     */
+    private void copyStored(final CKAN_API_Handler ckan_api_handler, final Resource resource, final String datasetName,
+                            final String resourceFileName) throws IOException {
+        Resource created = ckan_api_handler.createUploadedResource(datasetName, resourceFileName, resource);
+        try {
+            long size = filestore.copy(resource.getId(), created.getId());
+            getLogger().debug("Copied {} bytes of resource {} in the filestore", new Object[]{size, resource.getId()});
+        } catch (IOException e) {
+            getLogger().warn("Cannot copy resource {} in the filestore, uploading it: {}", new Object[]{resource.getId(), e.getMessage()});
+            ckan_api_handler.streamResource(datasetName, created.getId(), resourceFileName, resource);
+        }
+    }
+
+    /**
+     * Check that the url of a linked resource answers and, when CKAN knows the size of the resource, that the file
+     * still has that length
+     *
+     * @throws IOException The url does not answer or the length differs
+     */
+    private void verifyLink(final CKAN_API_Handler ckan_api_handler, final Resource resource) throws IOException {
+        RemoteFile remoteFile = ckan_api_handler.headResource(resource.getUrl());
+        long size = sizeOf(resource.getSize());
+        if (size > 0 && remoteFile.getLength() >= 0 && size != remoteFile.getLength()) {
+            throw new IOException("Resource " + resource.getName() + " has size " + size + " but " + resource.getUrl()
+                    + " is now " + remoteFile.getLength() + " bytes long");
+        }
+    }
+
+    /**
+     * The size of a resource comes as a number, a string or null depending on how the resource was created
+     *
+     * @return The size in bytes, or -1 if unknown
+     */
+    private static long sizeOf(Object size) {
+        if (size instanceof Number) {
+            return ((Number) size).longValue();
+        }
+        if (size instanceof String) {
+            try {
+                return Long.parseLong(((String) size).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Back up every package of an organization. The packages are found with a paged package_search on the
+     * organization, left to the other nodes in partitioned mode, and backed up with {@link #backupAll}.
+     */
+    private void backupOrganization(final ProcessContext context, final ProcessSession session, FlowFile flowFile,
+                                    final CKAN_API_Handler ckan_api_handler) throws IOException, InterruptedException {
+        final String organizationName = context.getProperty(organization).evaluateAttributeExpressions(flowFile).getValue();
+
+        List<Package_> datasets = new ArrayList<>();
+        for (int start = 0; ; start += ORGANIZATION_PAGE_SIZE) {
+            Package page = ckan_api_handler.searchPackages("*:*", "organization:" + organizationName, "name asc", ORGANIZATION_PAGE_SIZE, start);
+            if (page.getPackages() == null || page.getPackages().isEmpty()) {
+                break;
+            }
+            for (Package_ dataset : page.getPackages()) {
+                if (!BACKUP_SUFFIX.matcher(dataset.getName()).find()) {
+                    datasets.add(dataset);
+                }
+            }
+            if (page.getPackages().size() < ORGANIZATION_PAGE_SIZE) {
+                break;
+            }
+        }
+        if (datasets.isEmpty()) {
+            getLogger().warn("No packages found in organization {}", new Object[]{organizationName});
+            session.transfer(flowFile, REL_NO_PACKAGE);
+            return;
+        }
+        //In partitioned mode, keep only the packages this node owns on the current ring
+        try {
+            refreshRing();
+        } catch (IOException e) {
+            getLogger().warn("Could not reach the partition membership cache, using the last known members: {}", new Object[]{e.toString()});
+        }
+        final ConsistentHashRing ring = this.ring;
+        if (ring != null) {
+            final int listed = datasets.size();
+            datasets.removeIf(dataset -> !nodeId.equals(ring.ownerOf(dataset.getName())));
+            getLogger().info("Node {} owns {} of the {} packages of organization {}, shared by {} nodes",
+                    new Object[]{nodeId, datasets.size(), listed, organizationName, ring.getMembers().size()});
+        }
+        final Map<String, Package_> listed = new LinkedHashMap<>();
+        for (Package_ dataset : datasets) {
+            listed.put(dataset.getName(), dataset);
+        }
+        JsonObject summary = new JsonObject();
+        summary.addProperty("organization", organizationName);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("ckan.backup.organization", organizationName);
+        if (ring != null) {
+            attributes.put("ckan.backup.partition.node", nodeId);
+            attributes.put("ckan.backup.partition.members", String.valueOf(ring.getMembers().size()));
+        }
+        backupAll(context, session, flowFile, ckan_api_handler, new ArrayList<>(listed.keySet()), listed::get,
+                organizationName + "/", "organization " + organizationName, summary, attributes);
+    }
+
+    /**
+     * Back up the packages named in the content of the flowfile, one name per line or a JSON array of names. The
+     * packages are looked up by the backup workers, a name with no package is reported as failed in the summary.
+     * The progress of the list is recorded in the state under a hash of the names, so a flowfile routed back from
+     * failure, or any flowfile with the same list, only backs up the packages not backed up yet, and the entries of
+     * a list that never comes back are dropped with its run.
+     */
+    private void backupList(final ProcessContext context, final ProcessSession session, FlowFile flowFile,
+                            final CKAN_API_Handler ckan_api_handler) throws IOException, InterruptedException {
+        final StringBuilder text = new StringBuilder();
+        session.read(flowFile, in -> text.append(IOUtils.toString(in, StandardCharsets.UTF_8)));
+        final Set<String> names = new LinkedHashSet<>();
+        final String content = text.toString().trim();
+        if (content.startsWith("[")) {
+            for (JsonElement name : new JsonParser().parse(content).getAsJsonArray()) {
+                if (!name.isJsonNull() && !name.getAsString().trim().isEmpty()) {
+                    names.add(name.getAsString().trim());
+                }
+            }
+        } else {
+            for (String line : content.split("\\r?\\n")) {
+                if (!line.trim().isEmpty()) {
+                    names.add(line.trim());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            getLogger().warn("No package names in the content of {}", new Object[]{flowFile});
+            session.transfer(flowFile, REL_NO_PACKAGE);
+            return;
+        }
+
+        backupAll(context, session, flowFile, ckan_api_handler, new ArrayList<>(names), ckan_api_handler::getPackageByName,
+                "list/" + listHash(names) + "/", "the list of " + flowFile, new JsonObject(), new HashMap<>());
+    }
+
+    /**
+     * The SHA-256 of the names, in hexadecimal
+     */
+    private static String listHash(final Collection<String> names) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(String.join("\n", names).getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private interface PackageFinder {
+        Package_ find(String packageName) throws IOException;
+    }
+
+    /**
+     * Back up the packages from the backup executor, a slice of at most 'Packages in parallel' of them per trigger and
+     * only while the concurrency limit of the CKAN instance gives permits. The start of the run is recorded in the
+     * state under <code>prefix</code> and the outcome of each package under <code>prefix</code> + package as soon as
+     * it is known. While packages are left the flowfile goes back to the queue for the next trigger, once all of
+     * them were attempted it is replaced by a summary of the run.
+     * <p>
+     * A run older than 'Backup run expiration' is dropped, and the next one backs up every package again.
+     *
+     * @param lookup     Finds the package to back up from its name, null if there is none
+     * @param summary    Fields of the summary put before the results
+     * @param attributes Attributes of the summary flowfile besides the counts
+     */
+    private void backupAll(final ProcessContext context, final ProcessSession session, FlowFile flowFile,
+                           final CKAN_API_Handler ckan_api_handler, final List<String> packageNames, final PackageFinder lookup,
+                           final String prefix, final String description, final JsonObject summary,
+                           final Map<String, String> attributes) throws IOException, InterruptedException {
+        final String tagList = context.getProperty(tag_list).getValue();
+        final int workers = context.getProperty(backup_workers).asInteger();
+        final long expiration = context.getProperty(backup_run_expiration).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long now = System.currentTimeMillis();
+
+        //Drop the runs that expired, this one included, and start this one if there is none
+        updateState(context.getStateManager(), state -> {
+            for (String run : new ArrayList<>(state.keySet())) {
+                if (run.endsWith("/") && state.containsKey(run) && isExpired(state.get(run), now, expiration)) {
+                    state.keySet().removeIf(key -> key.startsWith(run));
+                }
+            }
+            if (!state.containsKey(prefix)) {
+                state.keySet().removeIf(key -> key.startsWith(prefix));
+                state.put(prefix, String.valueOf(now));
+            }
+        });
+
+        //Packages already attempted in this run are not backed up again
+        final Map<String, String> run = context.getStateManager().getState(Scope.LOCAL).toMap();
+        Map<String, BackupResult> results = new LinkedHashMap<>();
+        List<String> toBackup = new ArrayList<>();
+        for (String packageName : packageNames) {
+            BackupResult previous = BackupResult.fromState(packageName, run.get(prefix + packageName));
+            if (previous != null) {
+                results.put(packageName, previous);
+            } else {
+                toBackup.add(packageName);
+            }
+        }
+
+        if (!toBackup.isEmpty()) {
+            getLogger().debug("Backing up {} packages of {}, {} of {} attempted",
+                    new Object[]{Math.min(workers, toBackup.size()), description, results.size(), packageNames.size()});
+            CompletionService<BackupResult> completion = new ExecutorCompletionService<>(backupExecutor);
+            int submitted = 0;
+            for (final String packageName : toBackup) {
+                if (submitted >= workers || !isScheduled() || circuitBreaker.isRejecting() || !concurrencyLimit.tryAcquire()) {
+                    break;
+                }
+                completion.submit(() -> {
+                    try {
+                        Package_ dataset = lookup.find(packageName);
+                        if (dataset == null) {
+                            getLogger().warn("No package found with name {}", new Object[]{packageName});
+                            return new BackupResult(packageName, null, "package not found");
+                        }
+                        return new BackupResult(packageName, backupPackage(context.getStateManager(), ckan_api_handler, dataset, tagList), null);
+                    } catch (Exception e) {
+                        getLogger().error("Error while backing up package {}: {}", new Object[]{packageName, e.toString()});
+                        return new BackupResult(packageName, null, e.toString());
+                    } finally {
+                        concurrencyLimit.release();
+                    }
+                });
+                submitted++;
+            }
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    BackupResult result = completion.take().get();
+                    results.put(result.packageName, result);
+                    updateState(context.getStateManager(), state -> state.put(prefix + result.packageName, result.toState()));
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            if (submitted < toBackup.size()) {
+                //Leave the other packages to the next triggers, yielding when CKAN could not take any
+                session.transfer(flowFile);
+                if (submitted == 0) {
+                    context.yield();
+                }
+                return;
+            }
+        }
+
+        int failed = 0;
+        JsonArray packages = new JsonArray();
+        for (String packageName : packageNames) {
+            BackupResult result = results.get(packageName);
+            if (result.error != null) {
+                failed++;
+            }
+            packages.add(result.toJson());
+        }
+        summary.addProperty("packages", results.size());
+        summary.addProperty("succeeded", results.size() - failed);
+        summary.addProperty("failed", failed);
+        if (attributes.containsKey("ckan.backup.partition.node")) {
+            summary.addProperty("node", attributes.get("ckan.backup.partition.node"));
+            summary.addProperty("members", Integer.valueOf(attributes.get("ckan.backup.partition.members")));
+        }
+        summary.add("results", packages);
+        final byte[] content = new GsonBuilder().setPrettyPrinting().create().toJson(summary).getBytes(StandardCharsets.UTF_8);
+
+        flowFile = session.write(flowFile, out -> out.write(content));
+        attributes.put("ckan.backup.packages", String.valueOf(results.size()));
+        attributes.put("ckan.backup.failed", String.valueOf(failed));
+        attributes.put("mime.type", "application/json");
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        getLogger().info("Backed up {} of {} packages of {}", new Object[]{results.size() - failed, results.size(), description});
+        if (failed == 0) {
+            //The run is complete, the next one backs up every package again
+            updateState(context.getStateManager(), state -> state.keySet().removeIf(key -> key.startsWith(prefix)));
+        } else {
+            //A retry of the flowfile before the run expires only backs up the packages that failed
+            updateState(context.getStateManager(), state -> state.entrySet().removeIf(entry ->
+                    entry.getKey().startsWith(prefix) && entry.getValue().startsWith(BackupResult.FAILED)));
+        }
+        session.transfer(failed == 0 ? flowFile : session.penalize(flowFile), failed == 0 ? REL_BACKUP_CREATED : REL_FAILURE);
+    }
+
+    /**
+     * Apply <code>change</code> to the state. The state is shared by all the concurrent tasks of the processor and by
+     * the backup workers, so it is read again before each update.
+     */
+    private void updateState(final StateManager stateManager, final Consumer<Map<String, String>> change) throws IOException {
+        synchronized (stateLock) {
+            Map<String, String> state = new HashMap<>(stateManager.getState(Scope.LOCAL).toMap());
+            change.accept(state);
+            stateManager.setState(state, Scope.LOCAL);
+        }
+    }
+
+    private static boolean isExpired(final String runStart, final long now, final long expiration) {
+        return runStart == null || !runStart.matches("\\d+") || now - Long.parseLong(runStart) > expiration;
+    }
+
+    private static class BackupResult {
+        private static final String DONE = "done:";
+        private static final String FAILED = "failed:";
+
+        private final String packageName;
+        private final String backupName;
+        private final String error;
+
+        BackupResult(String packageName, String backupName, String error) {
+            this.packageName = packageName;
+            this.backupName = backupName;
+            this.error = error;
+        }
+
+        String toState() {
+            return error == null ? DONE + backupName : FAILED + error;
+        }
+
+        /**
+         * @return The outcome recorded in the state, null if the package was not attempted
+         */
+        static BackupResult fromState(String packageName, String state) {
+            if (state == null) {
+                return null;
+            }
+            if (state.startsWith(DONE)) {
+                return new BackupResult(packageName, state.substring(DONE.length()), null);
+            }
+            return new BackupResult(packageName, null, state.startsWith(FAILED) ? state.substring(FAILED.length()) : state);
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("package", packageName);
+            json.addProperty("status", error == null ? "done" : "failed");
+            if (backupName != null) {
+                json.addProperty("backup", backupName);
+            }
+            if (error != null) {
+                json.addProperty("error", error);
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Publish the current concurrency limit of the CKAN instance as the "CKAN concurrency limit" counter
+     */
+    private void reportConcurrencyLimit(final ProcessSession session) {
+        long current = concurrencyLimit.getLimit();
+        long previous = reportedConcurrencyLimit.getAndSet(current);
+        if (current != previous) {
+            session.adjustCounter("CKAN concurrency limit", current - previous, true);
+        }
+    }
 }
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.CircuitBreakerOpenException;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.Tag;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"ckan","backup","restore","web service","request"})
+@CapabilityDescription("Nifi Processor that restores a package from one of the timestamped backups made by CKAN_Package_Backup. The timestamp is removed "
+        + "from the names of the backup resources, and each one is streamed from the backup into the resource with the same name in the target package, "
+        + "which is patched, or created when missing. Several resources are restored at the same time. In dry run mode nothing is written and the "
+        + "flowfile is replaced by the list of changes a restore would make.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.restore.backup", description = "Name of the backup package restored"),
+        @WritesAttribute(attribute = "ckan.restore.target", description = "Name of the package restored into"),
+        @WritesAttribute(attribute = "ckan.restore.dry_run", description = "true if nothing was written"),
+        @WritesAttribute(attribute = "ckan.restore.failed", description = "Number of resources that could not be restored"),
+        @WritesAttribute(attribute = "mime.type", description = "application/json")})
+public class CKAN_Package_Restore extends AbstractProcessor {
+
+    //Suffix appended by CKAN_Package_Backup to the names of the backup package and its resources
+    private static final Pattern BACKUP_SUFFIX = Pattern.compile("\\d{8}_\\d{6}$");
+
+    private static final String ACTION_CREATE = "create";
+    private static final String ACTION_UPDATE = "update";
+    private static final String ACTION_UNCHANGED = "unchanged";
+    private static final String ACTION_EXTRA = "not in backup";
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to write to")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor backup_package = new PropertyDescriptor
+            .Builder().name("backup_package")
+            .displayName("Backup package")
+            .description("Name of the backup package to restore, <package><yyyyMMdd_HHmmss>")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .defaultValue("${filename}")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor target_package = new PropertyDescriptor
+            .Builder().name("target_package")
+            .displayName("Target package")
+            .description("Name of the package to restore into. By default the name of the backup without its timestamp")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor restore_workers = new PropertyDescriptor
+            .Builder().name("restore_workers")
+            .displayName("Resources in parallel")
+            .description("Maximum number of resources restored at the same time. The adaptive concurrency limit of the CKAN instance can lower it further.")
+            .addValidator(StandardValidators.createLongValidator(1, 64, true))
+            .defaultValue("8")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor dry_run = new PropertyDescriptor
+            .Builder().name("dry_run")
+            .displayName("Dry run")
+            .description("When true nothing is written to CKAN, the flowfile is replaced by the changes a restore would make")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("RESTORE_SUCCESS")
+            .description("Every resource was restored, or the dry run diff was computed")
+            .build();
+    private static final Relationship REL_NO_PACKAGE = new Relationship.Builder()
+            .name("NO_PACKAGE_FOUND")
+            .description("No backup package was found with that name")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Any flowfile that causes an error using the CKAN API, or whose restore left resources not restored")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService restoreExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(backup_package);
+        descriptors.add(target_package);
+        descriptors.add(restore_workers);
+        descriptors.add(dry_run);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_NO_PACKAGE);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        restoreExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN-resource-restore");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (restoreExecutor != null) {
+            restoreExecutor.shutdownNow();
+            restoreExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final String apiKey = context.getProperty(api_key).getValue();
+        final String backupName = context.getProperty(backup_package).evaluateAttributeExpressions(flowFile).getValue();
+        final boolean dryRun = context.getProperty(dry_run).asBoolean();
+        final int workers = context.getProperty(restore_workers).asInteger();
+
+        /* *****************
+         * Main logic of the CKAN package restore:
+         *  - Get the backup package and the target package (backup name without timestamp, unless set)
+         *  - Match every backup resource, without its timestamp, with the target resource of the same name
+         *  - In dry run, output the plan. Otherwise create the target if missing and stream every changed
+         *    resource from the backup into the target, several at a time
+         ******************** */
+
+        final AdaptiveConcurrencyLimit concurrencyLimit = AdaptiveConcurrencyLimit.forHost(url);
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        try {
+            Package_ backup = ckan_api_handler.showPackage(backupName);
+            if (backup == null) {
+                session.transfer(flowFile, REL_NO_PACKAGE);
+                return;
+            }
+            Matcher suffix = BACKUP_SUFFIX.matcher(backupName);
+            if (!suffix.find()) {
+                getLogger().error("{} is not a backup package, its name does not end with a timestamp", new Object[]{backupName});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                return;
+            }
+            final String timeStamp = suffix.group();
+            final String targetName = context.getProperty(target_package).isSet()
+                    ? context.getProperty(target_package).evaluateAttributeExpressions(flowFile).getValue()
+                    : backupName.substring(0, suffix.start());
+
+            Package_ target = ckan_api_handler.showPackage(targetName);
+            List<RestoreAction> plan = plan(backup, target, timeStamp);
+
+            if (!dryRun) {
+                if (target == null) {
+                    getLogger().info("Creating the package {} to restore {} into", new Object[]{targetName, backupName});
+                    String tags = backup.getTags() == null ? null
+                            : backup.getTags().stream().map(Tag::getName).collect(Collectors.joining(","));
+                    ckan_api_handler.createPackagePojoNoResources(backup, targetName, tags);
+                }
+                restore(ckan_api_handler, concurrencyLimit, circuitBreaker, targetName, plan, workers);
+            }
+
+            int failed = 0;
+            JsonArray resources = new JsonArray();
+            for (RestoreAction action : plan) {
+                if (action.error != null) {
+                    failed++;
+                }
+                resources.add(action.toJson());
+            }
+            JsonObject summary = new JsonObject();
+            summary.addProperty("backup", backupName);
+            summary.addProperty("target", targetName);
+            summary.addProperty("target_exists", target != null);
+            summary.addProperty("dry_run", dryRun);
+            summary.add("resources", resources);
+            final byte[] content = new GsonBuilder().setPrettyPrinting().create().toJson(summary).getBytes(StandardCharsets.UTF_8);
+
+            flowFile = session.write(flowFile, out -> out.write(content));
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.restore.backup", backupName);
+            attributes.put("ckan.restore.target", targetName);
+            attributes.put("ckan.restore.dry_run", String.valueOf(dryRun));
+            attributes.put("ckan.restore.failed", String.valueOf(failed));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            if (failed == 0) {
+                session.transfer(flowFile, REL_SUCCESS);
+            } else {
+                getLogger().error("{} resources of {} could not be restored into {}", new Object[]{failed, backupName, targetName});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        } catch (CircuitBreakerOpenException cboe) {
+            getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, cboe.getMessage()});
+            session.rollback();
+            context.yield();
+        } catch (IOException | InterruptedException e) {
+            getLogger().error("Error while restoring {}: {}", new Object[]{backupName, e.toString()});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    /**
+     * Decide what to do with every resource of the backup: create it in the target, update the target resource
+     * with the same name, or leave it when both have the same hash. Target resources that are not in the backup
+     * are listed but never removed.
+     */
+    static List<RestoreAction> plan(final Package_ backup, final Package_ target, final String timeStamp) {
+        Map<String, Resource> targetResources = new LinkedHashMap<>();
+        if (target != null && target.getResources() != null) {
+            for (Resource resource : target.getResources()) {
+                targetResources.put(resource.getName(), resource);
+            }
+        }
+        List<RestoreAction> plan = new ArrayList<>();
+        if (backup.getResources() != null) {
+            for (Resource resource : backup.getResources()) {
+                String name = stripTimestamp(resource.getName(), timeStamp);
+                Resource existing = targetResources.remove(name);
+                String action = existing == null ? ACTION_CREATE : sameContent(resource, existing) ? ACTION_UNCHANGED : ACTION_UPDATE;
+                plan.add(new RestoreAction(name, action, resource, existing));
+            }
+        }
+        for (Resource extra : targetResources.values()) {
+            plan.add(new RestoreAction(extra.getName(), ACTION_EXTRA, null, extra));
+        }
+        return plan;
+    }
+
+    /**
+     * Stream the resources to create or update from the restore executor, with at most <code>workers</code> in flight
+     * and only while the concurrency limit of the CKAN instance gives permits
+     */
+    private void restore(final CKAN_API_Handler ckan_api_handler, final AdaptiveConcurrencyLimit concurrencyLimit, final CircuitBreaker circuitBreaker,
+                         final String targetName, final List<RestoreAction> plan, final int workers) throws InterruptedException {
+        Deque<RestoreAction> pending = new ArrayDeque<>();
+        for (RestoreAction action : plan) {
+            if (ACTION_CREATE.equals(action.action) || ACTION_UPDATE.equals(action.action)) {
+                action.error = "not attempted";
+                pending.add(action);
+            }
+        }
+        CompletionService<RestoreAction> completion = new ExecutorCompletionService<>(restoreExecutor);
+        int inFlight = 0;
+        while (inFlight > 0 || (!pending.isEmpty() && isScheduled() && !circuitBreaker.isRejecting())) {
+            while (!pending.isEmpty() && inFlight < workers && !circuitBreaker.isRejecting() && concurrencyLimit.tryAcquire()) {
+                final RestoreAction action = pending.poll();
+                completion.submit(() -> {
+                    try {
+                        ckan_api_handler.streamResource(targetName, action.existing == null ? null : action.existing.getId(), action.name, action.source);
+                        action.error = null;
+                    } catch (Exception e) {
+                        getLogger().error("Error while restoring resource {}: {}", new Object[]{action.name, e.toString()});
+                        action.error = e.toString();
+                    } finally {
+                        concurrencyLimit.release();
+                    }
+                    return action;
+                });
+                inFlight++;
+            }
+            //Also wakes up regularly when no permit could be taken, to try again
+            if (completion.poll(100, TimeUnit.MILLISECONDS) != null) {
+                inFlight--;
+            }
+        }
+    }
+
+    /**
+     * Remove the timestamp CKAN_Package_Backup adds between the name and the extension of every resource
+     */
+    static String stripTimestamp(final String name, final String timeStamp) {
+        int index = name.lastIndexOf(timeStamp);
+        if (index < 0) {
+            return name;
+        }
+        return name.substring(0, index) + name.substring(index + timeStamp.length());
+    }
+
+    /**
+     * Only an identical, non empty hash is taken as proof that a resource does not need restoring
+     */
+    private static boolean sameContent(final Resource backup, final Resource target) {
+        return backup.getHash() != null && !backup.getHash().isEmpty() && backup.getHash().equalsIgnoreCase(target.getHash());
+    }
+
+    static class RestoreAction {
+        private final String name;
+        private final String action;
+        private final Resource source;
+        private final Resource existing;
+        private volatile String error;
+
+        RestoreAction(String name, String action, Resource source, Resource existing) {
+            this.name = name;
+            this.action = action;
+            this.source = source;
+            this.existing = existing;
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("name", name);
+            json.addProperty("action", action);
+            if (source != null) {
+                json.addProperty("from", source.getId());
+            }
+            if (existing != null) {
+                json.addProperty("resource_id", existing.getId());
+            }
+            if (error != null) {
+                json.addProperty("error", error);
+            }
+            return json;
+        }
+    }
+}
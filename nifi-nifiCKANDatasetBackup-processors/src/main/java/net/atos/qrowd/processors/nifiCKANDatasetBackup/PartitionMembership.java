@@ -0,0 +1,135 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The nodes sharing the backups of a processor, found through heartbeats in a distributed map cache: a single entry
+ * holds a heartbeat counter per node, which every heartbeat of the node increments. The entry carries no time, so the
+ * clocks of the nodes do not need to agree: each node measures with its own clock how long it has seen the counter
+ * of another node unchanged, and leaves out the nodes whose counter did not move within the timeout. The entry is
+ * updated with compare-and-replace when the cache service supports it, so concurrent heartbeats do not drop each
+ * other; with a plain cache a lost heartbeat is made up by the next one.
+ * <p>
+ * Nodes do not see a change of members at the same moment, so for up to a heartbeat interval their rings can differ
+ * and a package can be owned by two nodes, or by none in that run; the next run backs it up.
+ */
+class PartitionMembership {
+
+    private static final Type MEMBERS_TYPE = new TypeToken<Map<String, Long>>() {}.getType();
+    private static final int MAX_ATTEMPTS = 10;
+
+    private static final Serializer<String> SERIALIZER = (value, out) -> out.write(value.getBytes(StandardCharsets.UTF_8));
+    private static final Deserializer<String> DESERIALIZER = input -> input == null || input.length == 0 ? null : new String(input, StandardCharsets.UTF_8);
+
+    private final Gson gson = new Gson();
+    private final DistributedMapCacheClient cache;
+    private final String key;
+    private final long timeout;
+    //Heartbeat counter of every member and when this node saw it change, on its own clock
+    private final Map<String, long[]> observed = new HashMap<>();
+
+    /**
+     * @param cache         Cache shared by the nodes
+     * @param key           Entry holding the members, the same on every node
+     * @param timeoutMillis How long a node is a member after its heartbeat counter was last seen to change
+     */
+    PartitionMembership(DistributedMapCacheClient cache, String key, long timeoutMillis) {
+        this.cache = cache;
+        this.key = key;
+        this.timeout = timeoutMillis;
+    }
+
+    /**
+     * Record that the node is alive
+     *
+     * @return The nodes alive, this one included
+     */
+    synchronized Set<String> heartbeat(String nodeId) throws IOException {
+        Map<String, Long> members = update(current -> {
+            final long now = System.nanoTime();
+            current.entrySet().removeIf(member -> !member.getKey().equals(nodeId) && stale(member.getKey(), member.getValue(), now));
+            current.merge(nodeId, 1L, Long::sum);
+        });
+        observed.keySet().retainAll(members.keySet());
+        return new TreeSet<>(members.keySet());
+    }
+
+    /**
+     * Remove the node, so the others take its packages over without waiting for the timeout
+     */
+    synchronized void leave(String nodeId) throws IOException {
+        update(current -> current.remove(nodeId));
+    }
+
+    /**
+     * @return true if this node has seen the same heartbeat counter of the member for the timeout
+     */
+    private boolean stale(String member, long counter, long now) {
+        long[] seen = observed.get(member);
+        if (seen == null || seen[0] != counter) {
+            observed.put(member, new long[]{counter, now});
+            return false;
+        }
+        return now - seen[1] >= TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    private Map<String, Long> update(Consumer<Map<String, Long>> change) throws IOException {
+        if (cache instanceof AtomicDistributedMapCacheClient) {
+            return compareAndReplace((AtomicDistributedMapCacheClient<?>) cache, change);
+        }
+        Map<String, Long> members = parse(cache.get(key, SERIALIZER, DESERIALIZER));
+        change.accept(members);
+        cache.put(key, gson.toJson(members), SERIALIZER, SERIALIZER);
+        return members;
+    }
+
+    private <R> Map<String, Long> compareAndReplace(AtomicDistributedMapCacheClient<R> atomic, Consumer<Map<String, Long>> change) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            AtomicCacheEntry<String, String, R> entry = atomic.fetch(key, SERIALIZER, DESERIALIZER);
+            if (entry == null) {
+                entry = new AtomicCacheEntry<>(key, null, null);
+            }
+            Map<String, Long> members = parse(entry.getValue());
+            change.accept(members);
+            entry.setValue(gson.toJson(members));
+            if (atomic.replace(entry, SERIALIZER, SERIALIZER)) {
+                return members;
+            }
+        }
+        throw new IOException("Could not update the members in " + key + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    private Map<String, Long> parse(String value) {
+        Map<String, Long> members = value == null ? null : gson.fromJson(value, MEMBERS_TYPE);
+        return members == null ? new HashMap<>() : members;
+    }
+}
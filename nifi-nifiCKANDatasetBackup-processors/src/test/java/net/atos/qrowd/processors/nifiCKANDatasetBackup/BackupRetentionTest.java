@@ -0,0 +1,47 @@
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackupRetentionTest {
+
+    @Test
+    public void keepsTheLastBackupsOfEveryPackage() {
+        BackupRetention retention = new BackupRetention(2, 0, 0, 0);
+        List<String> expired = retention.expired(Arrays.asList(
+                "traffic20180101_100000", "traffic20180102_100000", "traffic20180103_100000",
+                "weather20180101_100000", "weather20180102_100000",
+                "traffic"));
+        assertEquals(Collections.singletonList("traffic20180101_100000"), expired);
+    }
+
+    @Test
+    public void keepsTheNewestBackupOfEachDayWeekAndMonth() {
+        BackupRetention retention = new BackupRetention(1, 2, 1, 2);
+        List<String> expired = retention.expired(Arrays.asList(
+                //Newest, kept as last and daily
+                "traffic20180315_180000",
+                //Same day, expired
+                "traffic20180315_060000",
+                //Second day, kept as daily
+                "traffic20180314_180000",
+                //Newest of February, kept as monthly
+                "traffic20180228_120000",
+                "traffic20180201_120000",
+                "traffic20180115_120000"));
+        assertEquals(Arrays.asList("traffic20180115_120000", "traffic20180201_120000", "traffic20180315_060000"), expired);
+    }
+
+    @Test
+    public void nothingExpiresWithoutAPolicy() {
+        BackupRetention retention = new BackupRetention(0, 0, 0, 0);
+        assertTrue(retention.keepsEverything());
+        assertTrue(retention.expired(Arrays.asList("traffic20180101_100000", "traffic20180102_100000")).isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import com.google.gson.JsonObject;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CKAN_Package_RestoreTest {
+
+    private static final String TIMESTAMP = "20180315_180000";
+
+    @Test
+    public void stripsTheTimestampBeforeTheExtension() {
+        assertEquals("traffic.csv", CKAN_Package_Restore.stripTimestamp("traffic" + TIMESTAMP + ".csv", TIMESTAMP));
+        assertEquals("traffic", CKAN_Package_Restore.stripTimestamp("traffic" + TIMESTAMP, TIMESTAMP));
+        //Names without the timestamp are left as they are
+        assertEquals("traffic.csv", CKAN_Package_Restore.stripTimestamp("traffic.csv", TIMESTAMP));
+    }
+
+    @Test
+    public void plansCreateUpdateUnchangedAndExtraResources() {
+        Package_ backup = dataset(
+                resource("b1", "new" + TIMESTAMP + ".csv", "aaa"),
+                resource("b2", "changed" + TIMESTAMP + ".csv", "bbb"),
+                resource("b3", "same" + TIMESTAMP + ".csv", "ccc"));
+        Package_ target = dataset(
+                resource("t1", "changed.csv", "old"),
+                resource("t2", "same.csv", "CCC"),
+                resource("t3", "extra.csv", "ddd"));
+
+        List<CKAN_Package_Restore.RestoreAction> plan = CKAN_Package_Restore.plan(backup, target, TIMESTAMP);
+
+        assertEquals(4, plan.size());
+        assertAction(plan.get(0), "new.csv", "create", null);
+        assertAction(plan.get(1), "changed.csv", "update", "t1");
+        assertAction(plan.get(2), "same.csv", "unchanged", "t2");
+        assertAction(plan.get(3), "extra.csv", "not in backup", "t3");
+        assertFalse(plan.get(3).toJson().has("from"));
+    }
+
+    @Test
+    public void createsEverythingWhenTheTargetIsMissing() {
+        Package_ backup = dataset(resource("b1", "traffic" + TIMESTAMP + ".csv", "aaa"));
+        List<CKAN_Package_Restore.RestoreAction> plan = CKAN_Package_Restore.plan(backup, null, TIMESTAMP);
+        assertEquals(1, plan.size());
+        assertAction(plan.get(0), "traffic.csv", "create", null);
+    }
+
+    @Test
+    public void resourcesWithoutHashAreAlwaysUpdated() {
+        Package_ backup = dataset(resource("b1", "traffic" + TIMESTAMP + ".csv", null));
+        Package_ target = dataset(resource("t1", "traffic.csv", null));
+        assertAction(CKAN_Package_Restore.plan(backup, target, TIMESTAMP).get(0), "traffic.csv", "update", "t1");
+    }
+
+    private static void assertAction(CKAN_Package_Restore.RestoreAction action, String name, String type, String resourceId) {
+        JsonObject json = action.toJson();
+        assertEquals(name, json.get("name").getAsString());
+        assertEquals(type, json.get("action").getAsString());
+        assertEquals(resourceId, json.has("resource_id") ? json.get("resource_id").getAsString() : null);
+    }
+
+    private static Package_ dataset(Resource... resources) {
+        Package_ dataset = new Package_();
+        dataset.setResources(Arrays.asList(resources));
+        return dataset;
+    }
+
+    private static Resource resource(String id, String name, String hash) {
+        Resource resource = new Resource();
+        resource.setId(id);
+        resource.setName(name);
+        resource.setHash(hash);
+        return resource;
+    }
+}
@@ -0,0 +1,46 @@
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void spreadsPackagesEvenlyAcrossMembers() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"), 128);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            owned.merge(ring.ownerOf("package" + i), 1, Integer::sum);
+        }
+        assertEquals(4, owned.size());
+        for (int count : owned.values()) {
+            //Within 30% of a fair share
+            assertTrue(String.valueOf(count), count > 1750 && count < 3250);
+        }
+    }
+
+    @Test
+    public void onlyTheLeavingMemberPackagesMove() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), 128);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node1", "node3"), 128);
+        for (int i = 0; i < 1000; i++) {
+            String owner = before.ownerOf("package" + i);
+            if (!owner.equals("node2")) {
+                assertEquals(owner, after.ownerOf("package" + i));
+            }
+        }
+    }
+
+    @Test
+    public void emptyRingOwnsNothing() {
+        assertNull(new ConsistentHashRing(Collections.emptyList(), 128).ownerOf("package"));
+    }
+}
@@ -0,0 +1,151 @@
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class PartitionMembershipTest {
+
+    private static final String KEY = "ckan.backup.members.test";
+
+    @Test
+    public void everyNodeSeesTheOthers() throws IOException {
+        MapCache cache = new MapCache();
+        PartitionMembership a = new PartitionMembership(cache, KEY, 60000);
+        PartitionMembership b = new PartitionMembership(cache, KEY, 60000);
+        a.heartbeat("a");
+        assertEquals(members("a", "b"), b.heartbeat("b"));
+        assertEquals(members("a", "b"), a.heartbeat("a"));
+    }
+
+    @Test
+    public void theEntryHoldsCountersNotTimes() throws IOException {
+        MapCache cache = new MapCache();
+        PartitionMembership a = new PartitionMembership(cache, KEY, 60000);
+        a.heartbeat("a");
+        a.heartbeat("a");
+        a.heartbeat("a");
+        assertEquals("{\"a\":3}", cache.values.get(KEY));
+    }
+
+    @Test
+    public void dropsANodeWhoseCounterStopsMoving() throws IOException, InterruptedException {
+        MapCache cache = new MapCache();
+        PartitionMembership a = new PartitionMembership(cache, KEY, 200);
+        PartitionMembership b = new PartitionMembership(cache, KEY, 200);
+        b.heartbeat("b");
+        assertEquals(members("a", "b"), a.heartbeat("a"));
+        Thread.sleep(100);
+        //b is still alive
+        b.heartbeat("b");
+        assertEquals(members("a", "b"), a.heartbeat("a"));
+        Thread.sleep(300);
+        //b stopped sending heartbeats
+        assertEquals(members("a"), a.heartbeat("a"));
+    }
+
+    @Test
+    public void leavingIsSeenAtOnce() throws IOException {
+        MapCache cache = new MapCache();
+        PartitionMembership a = new PartitionMembership(cache, KEY, 60000);
+        PartitionMembership b = new PartitionMembership(cache, KEY, 60000);
+        a.heartbeat("a");
+        b.heartbeat("b");
+        b.leave("b");
+        assertEquals(members("a"), a.heartbeat("a"));
+    }
+
+    private static Set<String> members(String... nodes) {
+        return new HashSet<>(Arrays.asList(nodes));
+    }
+
+    /**
+     * Cache of strings with a revision per key, like DistributedMapCacheClientService
+     */
+    private static class MapCache extends AbstractControllerService implements AtomicDistributedMapCacheClient<Long> {
+        private final Map<String, String> values = new HashMap<>();
+        private final Map<String, Long> revisions = new HashMap<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <K, V> AtomicCacheEntry<K, V, Long> fetch(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+            String value = values.get(key);
+            return value == null ? null : new AtomicCacheEntry<>(key, (V) value, revisions.get(key));
+        }
+
+        @Override
+        public <K, V> boolean replace(AtomicCacheEntry<K, V, Long> entry, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            String key = (String) entry.getKey();
+            if (!entry.getRevision().orElse(0L).equals(revisions.getOrDefault(key, 0L))) {
+                return false;
+            }
+            put(entry.getKey(), entry.getValue(), keySerializer, valueSerializer);
+            return true;
+        }
+
+        @Override
+        public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            if (values.containsKey(key)) {
+                return false;
+            }
+            put(key, value, keySerializer, valueSerializer);
+            return true;
+        }
+
+        @Override
+        public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer, Deserializer<V> valueDeserializer) throws IOException {
+            V existing = get(key, keySerializer, valueDeserializer);
+            if (existing == null) {
+                put(key, value, keySerializer, valueSerializer);
+            }
+            return existing;
+        }
+
+        @Override
+        public <K> boolean containsKey(K key, Serializer<K> keySerializer) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            valueSerializer.serialize(value, out);
+            values.put((String) key, out.toString("UTF-8"));
+            revisions.merge((String) key, 1L, Long::sum);
+        }
+
+        @Override
+        public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+            String value = values.get(key);
+            return valueDeserializer.deserialize(value == null ? null : value.getBytes("UTF-8"));
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public <K> boolean remove(K key, Serializer<K> serializer) {
+            revisions.remove(key);
+            return values.remove(key) != null;
+        }
+
+        @Override
+        public long removeByPattern(String regex) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
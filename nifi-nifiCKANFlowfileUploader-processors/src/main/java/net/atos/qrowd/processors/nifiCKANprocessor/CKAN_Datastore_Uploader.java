@@ -0,0 +1,491 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.CircuitBreakerOpenException;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.handlers.ResponseCache;
+import net.atos.qrowd.pojos.DatastoreField;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Tags({"ckan", "datastore", "record", "upsert", "web service", "request"})
+@CapabilityDescription("Nifi Processor that reads the records of the flowfile with a Record Reader and writes them into the CKAN DataStore "
+        + "of a resource with datastore_create / datastore_upsert. The table columns are mapped from the record schema, and the records "
+        + "are streamed in batches, several batches in flight at once, so memory stays bounded whatever the size of the flowfile.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource holding the DataStore table"),
+        @WritesAttribute(attribute = "ckan.datastore.records", description = "Number of records written into the DataStore")})
+public class CKAN_Datastore_Uploader extends AbstractProcessor {
+
+    private static final AllowableValue METHOD_UPSERT = new AllowableValue("upsert", "upsert", "Update the records whose primary key exists and insert the others. Requires a primary key.");
+    private static final AllowableValue METHOD_INSERT = new AllowableValue("insert", "insert", "Insert every record");
+    private static final AllowableValue METHOD_UPDATE = new AllowableValue("update", "update", "Update existing records only. Requires a primary key.");
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to write to")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor record_reader = new PropertyDescriptor
+            .Builder().name("record_reader")
+            .displayName("Record Reader")
+            .description("Record Reader used to parse the content of the flowfile")
+            .identifiesControllerService(RecordReaderFactory.class)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor package_name = new PropertyDescriptor
+            .Builder().name("package_name")
+            .displayName("Name of the package holding the resource")
+            .description("Name of the existing CKAN package the DataStore resource belongs to")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor resource_name = new PropertyDescriptor
+            .Builder().name("resource_name")
+            .displayName("Name of the DataStore resource")
+            .description("Name of the resource whose DataStore table receives the records. It is created in the package if it does not exist.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor primary_key = new PropertyDescriptor
+            .Builder().name("primary_key")
+            .displayName("Primary key")
+            .description("Comma-separated list of the record fields forming the primary key of the table")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor upsert_method = new PropertyDescriptor
+            .Builder().name("upsert_method")
+            .displayName("Write method")
+            .description("datastore_upsert method used to write the records")
+            .allowableValues(METHOD_UPSERT, METHOD_INSERT, METHOD_UPDATE)
+            .defaultValue(METHOD_UPSERT.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor batch_size = new PropertyDescriptor
+            .Builder().name("batch_size")
+            .displayName("Batch size")
+            .description("Number of records sent in each datastore_upsert call")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor batches_in_flight = new PropertyDescriptor
+            .Builder().name("batches_in_flight")
+            .displayName("Batches in flight")
+            .description("Maximum number of batches of one flowfile being written at the same time. Memory used is bounded by "
+                    + "(batches in flight + 1) x batch size records. Use 1 when the same primary key can appear in different batches "
+                    + "and the last value must win.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("Success relationship")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description(
+                    "Any flowfile that cannot be processed, either because an error with the flowfile or an error with the CKAN Api")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService batchExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(record_reader);
+        descriptors.add(package_name);
+        descriptors.add(resource_name);
+        descriptors.add(primary_key);
+        descriptors.add(upsert_method);
+        descriptors.add(batch_size);
+        descriptors.add(batches_in_flight);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!METHOD_INSERT.getValue().equals(context.getProperty(upsert_method).getValue()) && !context.getProperty(primary_key).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(primary_key.getDisplayName())
+                    .valid(false)
+                    .explanation("a primary key is required to " + context.getProperty(upsert_method).getValue() + " records")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        batchExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN-datastore-upsert");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        final FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final String apiKey = context.getProperty(api_key).getValue();
+        final RecordReaderFactory readerFactory = context.getProperty(record_reader).asControllerService(RecordReaderFactory.class);
+        final String packageName = context.getProperty(package_name).evaluateAttributeExpressions(flowFile).getValue();
+        final String resourceName = context.getProperty(resource_name).evaluateAttributeExpressions(flowFile).getValue();
+        final String method = context.getProperty(upsert_method).getValue();
+        final int batchSize = context.getProperty(batch_size).asInteger();
+        final int maxInFlight = context.getProperty(batches_in_flight).asInteger();
+        final List<String> primaryKey = new ArrayList<>();
+        if (context.getProperty(primary_key).isSet()) {
+            for (String field : context.getProperty(primary_key).evaluateAttributeExpressions(flowFile).getValue().split(",")) {
+                if (!field.trim().isEmpty()) {
+                    primaryKey.add(field.trim());
+                }
+            }
+        }
+
+        //  *******************
+        //   Main logic of the DataStore uploader
+        // - Look for the package and for a resource with the given name in it
+        // - Create (or extend) the DataStore table with the columns of the record schema
+        // - Stream the records in batches to datastore_upsert, several batches in flight
+        // -- In case of any exception in the process, send the flowfile to FAILURE.
+        // *********************
+
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(AdaptiveConcurrencyLimit.forHost(url));
+        ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+        ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(url, apiKey));
+
+        final AtomicReference<String> resourceId = new AtomicReference<>();
+        final AtomicLong recordCount = new AtomicLong();
+        try {
+            final Package_ dataset = ckan_api_handler.getPackageByName(packageName);
+            if (dataset == null) {
+                getLogger().error("Package {} not found in CKAN {}", new Object[]{packageName, url});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                return;
+            }
+            final String existingResourceId = findResourceId(dataset, resourceName);
+
+            session.read(flowFile, in -> {
+                try (RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+                    String id = ckan_api_handler.datastoreCreate(dataset.getId(), resourceName, existingResourceId,
+                            toDatastoreFields(reader.getSchema()), primaryKey);
+                    if (id == null) {
+                        throw new IOException("CKAN refused to create the DataStore table of resource " + resourceName);
+                    }
+                    resourceId.set(id);
+
+                    BatchWriter writer = new BatchWriter(ckan_api_handler, id, method, maxInFlight);
+                    try {
+                        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+                        Record record;
+                        while ((record = reader.nextRecord()) != null) {
+                            batch.add(toDatastoreRecord(record));
+                            if (batch.size() >= batchSize) {
+                                writer.submit(batch);
+                                recordCount.addAndGet(batch.size());
+                                batch = new ArrayList<>(batchSize);
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            writer.submit(batch);
+                            recordCount.addAndGet(batch.size());
+                        }
+                    } finally {
+                        //Never leave batches of this flowfile running after it has been routed
+                        writer.drain();
+                    }
+                    writer.checkFailure();
+                } catch (MalformedRecordException | SchemaNotFoundException e) {
+                    throw new IOException("Cannot read the records of the flowfile", e);
+                }
+            });
+
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.resource.id", resourceId.get());
+            attributes.put("ckan.datastore.records", String.valueOf(recordCount.get()));
+            session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+            getLogger().info("Wrote {} records into the DataStore of resource {}", new Object[]{recordCount.get(), resourceId.get()});
+        } catch (CircuitBreakerOpenException cboe) {
+            getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, cboe.getMessage()});
+            session.rollback();
+            context.yield();
+        } catch (ProcessException pe) {
+            //Exceptions thrown while reading the records come wrapped by session.read
+            if (pe.getCause() instanceof CircuitBreakerOpenException) {
+                getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, pe.getCause().getMessage()});
+                session.rollback();
+                context.yield();
+            } else {
+                getLogger().error("Error while writing the records of {} into the DataStore of resource {} in package {}: {}",
+                        new Object[]{flowFile, resourceName, packageName, pe.toString()});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        } catch (IOException e) {
+            getLogger().error("Error while writing the records of {} into the DataStore of resource {} in package {}: {}",
+                    new Object[]{flowFile, resourceName, packageName, e.toString()});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    private static String findResourceId(Package_ dataset, String resourceName) {
+        if (dataset.getResources() != null) {
+            for (Resource resource : dataset.getResources()) {
+                if (resourceName.equals(resource.getName())) {
+                    return resource.getId();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Map the fields of the record schema to DataStore columns
+     */
+    private static List<DatastoreField> toDatastoreFields(RecordSchema schema) {
+        List<DatastoreField> fields = new ArrayList<>();
+        for (RecordField field : schema.getFields()) {
+            fields.add(new DatastoreField(field.getFieldName(), toDatastoreType(field)));
+        }
+        return fields;
+    }
+
+    private static String toDatastoreType(RecordField field) {
+        switch (field.getDataType().getFieldType()) {
+            case BOOLEAN:
+                return "bool";
+            case BYTE:
+            case SHORT:
+            case INT:
+                return "int4";
+            case LONG:
+            case BIGINT:
+                return "int8";
+            case FLOAT:
+            case DOUBLE:
+                return "float8";
+            case DATE:
+                return "date";
+            case TIME:
+                return "time";
+            case TIMESTAMP:
+                return "timestamp";
+            case RECORD:
+            case ARRAY:
+            case MAP:
+            case CHOICE:
+                return "json";
+            default:
+                return "text";
+        }
+    }
+
+    private static Map<String, Object> toDatastoreRecord(Record record) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (RecordField field : record.getSchema().getFields()) {
+            values.put(field.getFieldName(), toDatastoreValue(record.getValue(field)));
+        }
+        return values;
+    }
+
+    private static Object toDatastoreValue(Object value) {
+        if (value instanceof Record) {
+            return toDatastoreRecord((Record) value);
+        } else if (value instanceof Object[]) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (Object[]) value) {
+                list.add(toDatastoreValue(element));
+            }
+            return list;
+        } else if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), toDatastoreValue(entry.getValue()));
+            }
+            return map;
+        } else if (value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof java.sql.Timestamp) {
+            //Their toString() is already in a format PostgreSQL understands
+            return value.toString();
+        } else if (value instanceof Date) {
+            return Instant.ofEpochMilli(((Date) value).getTime()).toString();
+        } else if (value instanceof Character) {
+            return value.toString();
+        }
+        return value;
+    }
+
+    /**
+     * Sends the batches of one flowfile to CKAN from the batch executor, with at most <code>maxInFlight</code>
+     * of them being written at the same time. Submitting blocks the reading thread while the limit is reached,
+     * which bounds the number of records held in memory.
+     */
+    private class BatchWriter {
+        private final CKAN_API_Handler handler;
+        private final String resourceId;
+        private final String method;
+        private final int maxInFlight;
+        private final Semaphore inFlight;
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        BatchWriter(CKAN_API_Handler handler, String resourceId, String method, int maxInFlight) {
+            this.handler = handler;
+            this.resourceId = resourceId;
+            this.method = method;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        void submit(final List<Map<String, Object>> batch) throws IOException {
+            checkFailure();
+            acquire(1);
+            try {
+                batchExecutor.submit(() -> {
+                    try {
+                        if (!handler.datastoreUpsert(resourceId, batch, method)) {
+                            failure.compareAndSet(null, new IOException("CKAN refused a batch of " + batch.size() + " records"));
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+        }
+
+        void drain() throws InterruptedIOException {
+            acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+
+        private void acquire(int permits) throws InterruptedIOException {
+            try {
+                inFlight.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the batches sent to CKAN");
+            }
+        }
+
+        void checkFailure() throws IOException {
+            IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+}
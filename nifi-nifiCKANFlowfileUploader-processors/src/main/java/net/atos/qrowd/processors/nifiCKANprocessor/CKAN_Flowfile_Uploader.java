@@ -16,14 +16,32 @@
 
 package net.atos.qrowd.processors.nifiCKANprocessor;
 
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
 import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.CircuitBreakerOpenException;
+import net.atos.qrowd.handlers.HedgePolicy;
+import net.atos.qrowd.handlers.LocalMetadataCache;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.handlers.ResourceUpload;
+import net.atos.qrowd.handlers.ResponseCache;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.commons.io.FileUtils;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.LogLevel;
@@ -32,15 +50,39 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Tags({"ckan", "web service", "request", "local"})
 @CapabilityDescription("Nifi Processor that will upload the specified flowfile to CKAN through its API, it will create the organization and package if needed.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.upload.replayed", description = "true when the flowfile was found in the upload journal and not uploaded again"),
+        @WritesAttribute(attribute = "ckan.target.N.url", description = "Replication: url of the Nth CKAN instance, 0 being CKAN Url"),
+        @WritesAttribute(attribute = "ckan.target.N.status", description = "Replication: success, unavailable or the failure of the upload to the Nth CKAN instance"),
+        @WritesAttribute(attribute = "ckan.replication.targets", description = "Replication: number of CKAN instances"),
+        @WritesAttribute(attribute = "ckan.replication.succeeded", description = "Replication: number of CKAN instances the file was uploaded to"),
+        @WritesAttribute(attribute = "ckan.replicated.<processor id>", description = "Replication: urls of the CKAN instances that already have a flowfile sent back to the queue or to failure")})
 @ReadsAttributes
         ({@ReadsAttribute(attribute = "filename", description = "The filename to use when writing the FlowFile to disk."),
-                @ReadsAttribute(attribute = "ckan_package_name", description = "The name of the CKAN package to store the flowfile into")}
+                @ReadsAttribute(attribute = "ckan_package_name", description = "The name of the CKAN package to store the flowfile into"),
+                @ReadsAttribute(attribute = "fragment.identifier", description = "Fragment grouping: the flowfiles with the same identifier are uploaded together"),
+                @ReadsAttribute(attribute = "fragment.count", description = "Fragment grouping: the number of flowfiles in the group"),
+                @ReadsAttribute(attribute = "fragment.index", description = "Fragment grouping: the order of the flowfile in its group")}
         )
 public class CKAN_Flowfile_Uploader extends AbstractProcessor {
 
@@ -48,6 +90,29 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
     private static final AllowableValue PRIVATE_FALSE = new AllowableValue("False", "Public", "Marks the package as public");
 
 
+    private static final AllowableValue LOOKUP_SHOW = new AllowableValue("package_show", "package_show",
+            "Look packages up by name with package_show, a primary key lookup that sees packages as soon as they are created. "
+                    + "Unchanged packages are answered with 304 Not Modified when CKAN sends validators.");
+    private static final AllowableValue LOOKUP_SEARCH = new AllowableValue("package_search", "package_search",
+            "Look packages up with package_search?q=name:X, through the search index");
+
+    //Most flowfiles looked at to sort into groups in one trigger
+    private static final int GROUP_SCAN_LIMIT = 10000;
+
+    private static final AllowableValue REPLICATION_ALL = new AllowableValue("all", "All",
+            "The upload succeeds when every CKAN instance has the file");
+    private static final AllowableValue REPLICATION_QUORUM = new AllowableValue("quorum", "Quorum",
+            "The upload succeeds when more than half of the CKAN instances have the file");
+    private static final AllowableValue REPLICATION_ANY = new AllowableValue("any", "Any",
+            "The upload succeeds when at least one CKAN instance has the file");
+
+    private static final AllowableValue GROUP_NONE = new AllowableValue("none", "None",
+            "Upload every flowfile on its own");
+    private static final AllowableValue GROUP_FRAGMENT = new AllowableValue("fragment", "Fragment",
+            "Wait for every flowfile with the same fragment.identifier (fragment.count of them) and upload them together");
+    private static final AllowableValue GROUP_PACKAGE = new AllowableValue("package", "Package",
+            "Upload together the flowfiles for the same package that arrive within the group window, up to the group size");
+
     private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
             .Builder().name("CKAN_url")
             .displayName("CKAN Url")
@@ -126,6 +191,261 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
             .required(false)
             .build();
 
+    private static final PropertyDescriptor circuit_breaker_failure_rate = new PropertyDescriptor
+            .Builder().name("circuit_breaker_failure_rate")
+            .displayName("Circuit breaker failure rate")
+            .description("Percentage of failed CKAN calls (connection errors, 5xx or 429 responses) within the window that opens the circuit breaker. "
+                    + "While the breaker is open the processor yields without taking flowfiles.")
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .required(true)
+            .defaultValue("50")
+            .build();
+    private static final PropertyDescriptor circuit_breaker_window = new PropertyDescriptor
+            .Builder().name("circuit_breaker_window")
+            .displayName("Circuit breaker window size")
+            .description("Number of most recent CKAN calls used to compute the failure rate")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("20")
+            .build();
+    private static final PropertyDescriptor circuit_breaker_open_duration = new PropertyDescriptor
+            .Builder().name("circuit_breaker_open_duration")
+            .displayName("Circuit breaker open duration")
+            .description("Time the circuit breaker stays open before letting a probe call through to check if CKAN has recovered")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("30 sec")
+            .build();
+    private static final PropertyDescriptor read_rate_limit = new PropertyDescriptor
+            .Builder().name("read_rate_limit")
+            .displayName("Read requests per second")
+            .description("Maximum rate of read requests sent to CKAN, shared by every processor using the same CKAN url and Api Key. "
+                    + "Requests over the rate wait for their turn instead of being rejected. 0 means no limit.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("0")
+            .build();
+    private static final PropertyDescriptor write_rate_limit = new PropertyDescriptor
+            .Builder().name("write_rate_limit")
+            .displayName("Write requests per second")
+            .description("Maximum rate of write requests (creations, updates, uploads) sent to CKAN, shared by every processor using the same CKAN url and Api Key. 0 means no limit.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("0")
+            .build();
+    private static final PropertyDescriptor upload_bandwidth_limit = new PropertyDescriptor
+            .Builder().name("upload_bandwidth_limit")
+            .displayName("Upload bandwidth per second")
+            .description("Maximum amount of data uploaded to CKAN per second, shared by every processor using the same CKAN url and Api Key. 0 B means no limit.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .defaultValue("0 B")
+            .build();
+    private static final PropertyDescriptor concurrency_limit_min = new PropertyDescriptor
+            .Builder().name("concurrency_limit_min")
+            .displayName("Minimum concurrent operations")
+            .description("Lowest value the adaptive concurrency limit of the CKAN instance can be cut to")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("1")
+            .build();
+    private static final PropertyDescriptor concurrency_limit_max = new PropertyDescriptor
+            .Builder().name("concurrency_limit_max")
+            .displayName("Maximum concurrent operations")
+            .description("Highest value the adaptive concurrency limit of the CKAN instance can grow to. "
+                    + "The limit is shared by every processor using the same CKAN url, and the processor yields when it is reached.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("32")
+            .build();
+    private static final PropertyDescriptor concurrency_latency_tolerance = new PropertyDescriptor
+            .Builder().name("concurrency_latency_tolerance")
+            .displayName("Latency tolerance")
+            .description("Ratio between the recent CKAN latency and its baseline above which the concurrency limit is reduced")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("2.0")
+            .build();
+    private static final PropertyDescriptor hedge_reads = new PropertyDescriptor
+            .Builder().name("hedge_reads")
+            .displayName("Hedge read requests")
+            .description("When enabled, a lookup in CKAN that has not answered after the hedge percentile of the recent lookup latencies "
+                    + "is sent a second time and the first answer is used. Write requests are never hedged.")
+            .allowableValues("true", "false")
+            .required(true)
+            .defaultValue("false")
+            .build();
+    private static final PropertyDescriptor hedge_percentile = new PropertyDescriptor
+            .Builder().name("hedge_percentile")
+            .displayName("Hedge percentile")
+            .description("Percentile of the recent lookup latencies after which a duplicate lookup is sent")
+            .addValidator(StandardValidators.createLongValidator(1, 99, true))
+            .required(true)
+            .defaultValue("95")
+            .build();
+    private static final PropertyDescriptor hedge_budget = new PropertyDescriptor
+            .Builder().name("hedge_budget")
+            .displayName("Hedge budget")
+            .description("Maximum percentage of lookups that can be duplicated, to cap the extra load put on CKAN")
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .required(true)
+            .defaultValue("10")
+            .build();
+    private static final PropertyDescriptor package_lookup = new PropertyDescriptor
+            .Builder().name("package_lookup")
+            .displayName("Package lookup")
+            .description("CKAN action used to find a package by its name")
+            .allowableValues(LOOKUP_SHOW, LOOKUP_SEARCH)
+            .required(true)
+            .defaultValue(LOOKUP_SHOW.getValue())
+            .build();
+    private static final PropertyDescriptor group_by = new PropertyDescriptor
+            .Builder().name("group_by")
+            .displayName("Group uploads")
+            .description("Upload groups of flowfiles to their package with a single package_revise request (one package update and re-index "
+                    + "per group) instead of one resource upload per flowfile. Each flowfile of a group becomes the resource named as its "
+                    + "filename, replacing the file of that resource if the package already has it")
+            .allowableValues(GROUP_NONE, GROUP_FRAGMENT, GROUP_PACKAGE)
+            .required(true)
+            .defaultValue(GROUP_NONE.getValue())
+            .build();
+    private static final PropertyDescriptor group_max_wait = new PropertyDescriptor
+            .Builder().name("group_max_wait")
+            .displayName("Group window")
+            .description("How long to wait for a group to fill. An incomplete fragment group, or a package group smaller than the group size, "
+                    + "is uploaded with the flowfiles that have arrived once this time has passed since the first of them was seen")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("30 sec")
+            .build();
+    private static final PropertyDescriptor group_max_size = new PropertyDescriptor
+            .Builder().name("group_max_size")
+            .displayName("Group size")
+            .description("Maximum number of flowfiles uploaded in one request")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("100")
+            .build();
+
+    private static final PropertyDescriptor coalesce_window = new PropertyDescriptor
+            .Builder().name("coalesce_window")
+            .displayName("Coalescing window")
+            .description("Only upload the newest of the flowfiles for the same package and resource that arrive within this window. "
+                    + "The first flowfile for a resource waits, penalized in the queue, until the window is over; every older one seen "
+                    + "in the meantime is routed to superseded. 0 sec uploads every flowfile as soon as it arrives")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("0 sec")
+            .build();
+    private static final PropertyDescriptor coalesce_max_keys = new PropertyDescriptor
+            .Builder().name("coalesce_max_keys")
+            .displayName("Coalesced resources")
+            .description("Maximum number of resources tracked by the coalescing window. When it is reached, flowfiles for other resources "
+                    + "are uploaded without waiting")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("10000")
+            .build();
+
+    private static final PropertyDescriptor write_behind_directory = new PropertyDescriptor
+            .Builder().name("write_behind_directory")
+            .displayName("Write-behind directory")
+            .description("Enables write-behind mode: every flowfile is copied to this directory, recorded in an append-only journal and sent "
+                    + "to success at once, and a pool of uploader threads drains the journal to CKAN with retries. Uploads still pending "
+                    + "when the processor is stopped or NiFi restarts are resumed from the journal. Every processor needs its own directory")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor write_behind_workers = new PropertyDescriptor
+            .Builder().name("write_behind_workers")
+            .displayName("Write-behind uploaders")
+            .description("Number of threads uploading the journaled flowfiles to CKAN")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("2")
+            .build();
+    private static final PropertyDescriptor write_behind_max_pending = new PropertyDescriptor
+            .Builder().name("write_behind_max_pending")
+            .displayName("Write-behind capacity")
+            .description("Maximum number of journaled flowfiles waiting to be uploaded. When it is reached the processor stops taking flowfiles, "
+                    + "so back pressure reaches the flow instead of the disk filling up")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("10000")
+            .build();
+    private static final PropertyDescriptor write_behind_max_attempts = new PropertyDescriptor
+            .Builder().name("write_behind_max_attempts")
+            .displayName("Write-behind attempts")
+            .description("Attempts made to upload a journaled flowfile before giving up on it. Given up flowfiles are moved to the failed "
+                    + "folder of the write-behind directory. Time spent with the circuit breaker open does not count")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("10")
+            .build();
+    private static final PropertyDescriptor write_behind_retry_delay = new PropertyDescriptor
+            .Builder().name("write_behind_retry_delay")
+            .displayName("Write-behind retry delay")
+            .description("Delay before the first retry of a failed upload, doubled on every further attempt up to 10 minutes")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("10 sec")
+            .build();
+
+    private static final PropertyDescriptor replica_targets = new PropertyDescriptor
+            .Builder().name("replica_targets")
+            .displayName("Replica CKAN instances")
+            .description("Other CKAN instances every flowfile is also uploaded to, one per line as url,api key. The flowfile is read once and "
+                    + "uploaded to CKAN Url and to every replica at the same time")
+            .addValidator(Validator.VALID)
+            .required(false)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor replication_success = new PropertyDescriptor
+            .Builder().name("replication_success")
+            .displayName("Replication success")
+            .description("How many of the CKAN instances must have the file for the flowfile to go to success")
+            .allowableValues(REPLICATION_ALL, REPLICATION_QUORUM, REPLICATION_ANY)
+            .required(true)
+            .defaultValue(REPLICATION_ALL.getValue())
+            .build();
+
+    private static final PropertyDescriptor dedup_journal = new PropertyDescriptor
+            .Builder().name("dedup_journal")
+            .displayName("Upload journal file")
+            .description("File remembering the uploads already made, by flowfile uuid and content hash. A flowfile replayed after its upload "
+                    + "succeeded, because its session was rolled back or a node failed over, is sent to success without uploading it again. "
+                    + "Every processor needs its own file")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor dedup_ttl = new PropertyDescriptor
+            .Builder().name("dedup_ttl")
+            .displayName("Upload journal retention")
+            .description("How long uploads are remembered in the upload journal")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("7 days")
+            .build();
+
+    private static final PropertyDescriptor metadata_cache = new PropertyDescriptor
+            .Builder().name("metadata_cache")
+            .displayName("Metadata cache service")
+            .description("Distributed map cache shared by the nodes of the cluster, remembering which organizations and packages exist "
+                    + "so that they are looked up once for the whole cluster, and making only one node create a missing one while the others wait for it. "
+                    + "It must support compare-and-replace (an AtomicDistributedMapCacheClient such as DistributedMapCacheClientService), "
+                    + "so that only one node takes over the creation from a node that stopped")
+            .identifiesControllerService(AtomicDistributedMapCacheClient.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor metadata_cache_ttl = new PropertyDescriptor
+            .Builder().name("metadata_cache_ttl")
+            .displayName("Metadata cache expiration")
+            .description("How long an organization or package is trusted to exist, in the memory of this node and in the metadata cache service, "
+                    + "before asking CKAN again")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("1 min")
+            .build();
 
     private static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("SUCCESS")
@@ -136,11 +456,41 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
             .description(
                     "Any flowfile that cannot be processed, either because an error with the flowfile or an error with the CKAN Api")
             .build();
+    private static final Relationship REL_SUPERSEDED = new Relationship.Builder()
+            .name("superseded")
+            .description("Flowfiles not uploaded because a newer flowfile for the same package and resource arrived within the coalescing window")
+            .build();
 
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
 
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile RateLimiter rateLimiter;
+    private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+    private volatile HedgePolicy hedgePolicy;
+    private volatile DistributedMetadataCache sharedMetadataCache;
+    private volatile long metadataCacheTtl;
+    private final AtomicLong reportedConcurrencyLimit = new AtomicLong();
+    //When the first flowfile of every group being waited for was seen
+    private final Map<String, Long> groupFirstSeen = new ConcurrentHashMap<>();
+    //Groups are gathered one at a time, so concurrent tasks do not each take part of the same group
+    private final Lock groupLock = new ReentrantLock();
+    //Newest flowfile of every resource in its coalescing window, by package/resource
+    private final Map<String, PendingUpload> pendingUploads = new ConcurrentHashMap<>();
+
+    private volatile WriteBehindJournal journal;
+    private volatile UploadDedupJournal dedupJournal;
+    //CKAN Url first, then the replicas; empty when there are no replicas
+    private volatile List<Target> targets = Collections.emptyList();
+    private volatile ExecutorService replicationExecutor;
+    private volatile ScheduledExecutorService writeBehindExecutor;
+    private volatile String writeBehindUrl;
+    private volatile String writeBehindApiKey;
+    private volatile boolean writeBehindLookupShow;
+    private volatile int writeBehindMaxAttempts;
+    private volatile long writeBehindRetryDelay;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
@@ -154,12 +504,42 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         descriptors.add(resource_suffix_regex);
         descriptors.add(resource_format);
         descriptors.add(tag_list);
+        descriptors.add(circuit_breaker_failure_rate);
+        descriptors.add(circuit_breaker_window);
+        descriptors.add(circuit_breaker_open_duration);
+        descriptors.add(read_rate_limit);
+        descriptors.add(write_rate_limit);
+        descriptors.add(upload_bandwidth_limit);
+        descriptors.add(concurrency_limit_min);
+        descriptors.add(concurrency_limit_max);
+        descriptors.add(concurrency_latency_tolerance);
+        descriptors.add(hedge_reads);
+        descriptors.add(hedge_percentile);
+        descriptors.add(hedge_budget);
+        descriptors.add(package_lookup);
+        descriptors.add(group_by);
+        descriptors.add(group_max_wait);
+        descriptors.add(group_max_size);
+        descriptors.add(coalesce_window);
+        descriptors.add(coalesce_max_keys);
+        descriptors.add(write_behind_directory);
+        descriptors.add(write_behind_workers);
+        descriptors.add(write_behind_max_pending);
+        descriptors.add(write_behind_max_attempts);
+        descriptors.add(write_behind_retry_delay);
+        descriptors.add(replica_targets);
+        descriptors.add(replication_success);
+        descriptors.add(dedup_journal);
+        descriptors.add(dedup_ttl);
+        descriptors.add(metadata_cache);
+        descriptors.add(metadata_cache_ttl);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<>();
         relationships.add(REL_SUCCESS);
         relationships.add(REL_FAILURE);
+        relationships.add(REL_SUPERSEDED);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -174,12 +554,258 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
     }
 
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(replica_targets).isSet()) {
+            for (String line : context.getProperty(replica_targets).getValue().split("\\r?\\n")) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] target = line.split(",", 2);
+                if (target.length != 2 || target[1].trim().isEmpty()
+                        || !StandardValidators.URL_VALIDATOR.validate(replica_targets.getName(), target[0].trim(), context).isValid()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(replica_targets.getDisplayName())
+                            .valid(false)
+                            .explanation("every line must be a CKAN url and its api key separated by a comma")
+                            .build());
+                    break;
+                }
+            }
+        }
+        //Replication exports the flowfile and waits for every target, grouped and write-behind uploads have their own paths
+        if (context.getProperty(replica_targets).isSet() && context.getProperty(write_behind_directory).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(replica_targets.getDisplayName())
+                    .valid(false)
+                    .explanation("replication is not supported for write-behind uploads, unset write_behind_directory")
+                    .build());
+        }
+        if (context.getProperty(replica_targets).isSet() && !GROUP_NONE.getValue().equals(context.getProperty(group_by).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(replica_targets.getDisplayName())
+                    .valid(false)
+                    .explanation("replication is not supported for grouped uploads, set group_by to none")
+                    .build());
+        }
+        if (!GROUP_NONE.getValue().equals(context.getProperty(group_by).getValue()) && context.getProperty(write_behind_directory).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(write_behind_directory.getDisplayName())
+                    .valid(false)
+                    .explanation("write-behind is not supported for grouped uploads, set group_by to none")
+                    .build());
+        }
+        //Grouped uploads go through package_revise, which has no per flowfile record of what was uploaded
+        if (!GROUP_NONE.getValue().equals(context.getProperty(group_by).getValue()) && context.getProperty(dedup_journal).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(dedup_journal.getDisplayName())
+                    .valid(false)
+                    .explanation("idempotent uploads are not supported for grouped uploads, set group_by to none")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        circuitBreaker = CircuitBreaker.forHost(context.getProperty(CKAN_url).getValue());
+        circuitBreaker.configure(context.getProperty(circuit_breaker_window).asInteger(),
+                context.getProperty(circuit_breaker_failure_rate).asInteger() / 100.0,
+                context.getProperty(circuit_breaker_open_duration).asTimePeriod(TimeUnit.MILLISECONDS),
+                1);
+
+        rateLimiter = RateLimiter.forEndpoint(context.getProperty(CKAN_url).getValue(), context.getProperty(api_key).getValue());
+        rateLimiter.configure(context.getProperty(read_rate_limit).asDouble(),
+                context.getProperty(write_rate_limit).asDouble(),
+                context.getProperty(upload_bandwidth_limit).asDataSize(DataUnit.B).longValue());
+
+        concurrencyLimit = AdaptiveConcurrencyLimit.forHost(context.getProperty(CKAN_url).getValue());
+        concurrencyLimit.configure(context.getProperty(concurrency_limit_min).asInteger(),
+                context.getProperty(concurrency_limit_max).asInteger(),
+                context.getProperty(concurrency_latency_tolerance).asDouble());
+
+        if (context.getProperty(hedge_reads).asBoolean()) {
+            hedgePolicy = HedgePolicy.forHost(context.getProperty(CKAN_url).getValue());
+            hedgePolicy.configure(context.getProperty(hedge_percentile).asInteger() / 100.0,
+                    context.getProperty(hedge_budget).asInteger() / 100.0);
+        } else {
+            hedgePolicy = null;
+        }
+
+        metadataCacheTtl = context.getProperty(metadata_cache_ttl).asTimePeriod(TimeUnit.MILLISECONDS);
+        LocalMetadataCache.forEndpoint(context.getProperty(CKAN_url).getValue(), context.getProperty(api_key).getValue()).configure(metadataCacheTtl);
+        if (context.getProperty(metadata_cache).isSet()) {
+            sharedMetadataCache = new DistributedMetadataCache(context.getProperty(metadata_cache).asControllerService(AtomicDistributedMapCacheClient.class));
+        } else {
+            sharedMetadataCache = null;
+        }
+
+        if (context.getProperty(replica_targets).isSet()) {
+            List<Target> targets = new ArrayList<>();
+            targets.add(new Target(context.getProperty(CKAN_url).getValue(), context.getProperty(api_key).getValue(),
+                    circuitBreaker, rateLimiter, concurrencyLimit, hedgePolicy));
+            for (String line : context.getProperty(replica_targets).getValue().split("\\r?\\n")) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] target = line.split(",", 2);
+                String url = target[0].trim();
+                String key = target[1].trim();
+                //Every replica gets the same resilience settings, on its own shared breaker, rate limiter and limit
+                CircuitBreaker breaker = CircuitBreaker.forHost(url);
+                breaker.configure(context.getProperty(circuit_breaker_window).asInteger(),
+                        context.getProperty(circuit_breaker_failure_rate).asInteger() / 100.0,
+                        context.getProperty(circuit_breaker_open_duration).asTimePeriod(TimeUnit.MILLISECONDS),
+                        1);
+                RateLimiter limiter = RateLimiter.forEndpoint(url, key);
+                limiter.configure(context.getProperty(read_rate_limit).asDouble(),
+                        context.getProperty(write_rate_limit).asDouble(),
+                        context.getProperty(upload_bandwidth_limit).asDataSize(DataUnit.B).longValue());
+                AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.forHost(url);
+                limit.configure(context.getProperty(concurrency_limit_min).asInteger(),
+                        context.getProperty(concurrency_limit_max).asInteger(),
+                        context.getProperty(concurrency_latency_tolerance).asDouble());
+                HedgePolicy hedge = null;
+                if (context.getProperty(hedge_reads).asBoolean()) {
+                    hedge = HedgePolicy.forHost(url);
+                    hedge.configure(context.getProperty(hedge_percentile).asInteger() / 100.0,
+                            context.getProperty(hedge_budget).asInteger() / 100.0);
+                }
+                LocalMetadataCache.forEndpoint(url, key).configure(metadataCacheTtl);
+                targets.add(new Target(url, key, breaker, limiter, limit, hedge));
+            }
+            this.targets = Collections.unmodifiableList(targets);
+            replicationExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "CKAN-replication");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            targets = Collections.emptyList();
+        }
+
+        if (context.getProperty(dedup_journal).isSet()) {
+            dedupJournal = new UploadDedupJournal(Paths.get(context.getProperty(dedup_journal).getValue()),
+                    context.getProperty(dedup_ttl).asTimePeriod(TimeUnit.MILLISECONDS));
+        } else {
+            dedupJournal = null;
+        }
+
+        if (context.getProperty(write_behind_directory).isSet()) {
+            writeBehindUrl = context.getProperty(CKAN_url).getValue();
+            writeBehindApiKey = context.getProperty(api_key).getValue();
+            writeBehindLookupShow = LOOKUP_SHOW.getValue().equals(context.getProperty(package_lookup).getValue());
+            writeBehindMaxAttempts = context.getProperty(write_behind_max_attempts).asInteger();
+            writeBehindRetryDelay = context.getProperty(write_behind_retry_delay).asTimePeriod(TimeUnit.MILLISECONDS);
+
+            journal = new WriteBehindJournal(Paths.get(context.getProperty(write_behind_directory).getValue()));
+            writeBehindExecutor = Executors.newScheduledThreadPool(context.getProperty(write_behind_workers).asInteger(), runnable -> {
+                Thread thread = new Thread(runnable, "CKAN-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            //Resume the uploads left pending by the last run
+            List<WriteBehindJournal.Entry> pending = journal.pending();
+            if (!pending.isEmpty()) {
+                getLogger().info("Resuming {} journaled uploads", new Object[]{pending.size()});
+            }
+            for (WriteBehindJournal.Entry entry : pending) {
+                writeBehindExecutor.execute(() -> drain(entry));
+            }
+        } else {
+            journal = null;
+        }
+    }
+
+    @OnStopped
+    public void onStopped() throws IOException {
+        if (replicationExecutor != null) {
+            replicationExecutor.shutdownNow();
+            replicationExecutor = null;
+        }
+        if (writeBehindExecutor != null) {
+            //Uploads interrupted here are still pending in the journal and are resumed on the next start
+            writeBehindExecutor.shutdownNow();
+            try {
+                writeBehindExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeBehindExecutor = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (dedupJournal != null) {
+            dedupJournal.close();
+            dedupJournal = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        if (journal != null && GROUP_NONE.getValue().equals(context.getProperty(group_by).getValue())) {
+            //Accepting into the journal does not depend on CKAN, only on the room left in the journal
+            if (journal.size() >= context.getProperty(write_behind_max_pending).asInteger()) {
+                context.yield();
+                return;
+            }
+            uploadFlowFile(context, session);
+            return;
+        }
+        //Do not take flowfiles while CKAN is known to be failing, let the breaker cool down instead.
+        //With replicas the other instances can still take the file, every target checks its own breaker
+        if (circuitBreaker.isRejecting() && targets.isEmpty()) {
+            context.yield();
+            return;
+        }
+        //Respect the adaptive concurrency limit of the CKAN instance by yielding instead of blocking the thread
+        if (!concurrencyLimit.tryAcquire()) {
+            context.yield();
+            return;
+        }
+        try {
+            if (GROUP_NONE.getValue().equals(context.getProperty(group_by).getValue())) {
+                uploadFlowFile(context, session);
+            } else {
+                uploadGroup(context, session);
+            }
+        } finally {
+            concurrencyLimit.release();
+            reportConcurrencyLimit(session);
+        }
+    }
+
+    private void uploadFlowFile(final ProcessContext context, final ProcessSession session) {
         FlowFile flowFile = session.get();
         if (flowFile == null)
             return;
 
+        final long window = context.getProperty(coalesce_window).asTimePeriod(TimeUnit.MILLISECONDS);
+        if (window > 0) {
+            String resourceKey = datasetName(context, flowFile) + "/" + resourceName(flowFile);
+            switch (coalesce(resourceKey, flowFile, window, context.getProperty(coalesce_max_keys).asInteger())) {
+                case SUPERSEDED:
+                    getLogger().debug("{} superseded by a newer flowfile for {}", new Object[]{flowFile, resourceKey});
+                    session.transfer(flowFile, REL_SUPERSEDED);
+                    session.commit();
+                    return;
+                case WAIT:
+                    session.transfer(session.penalize(flowFile));
+                    session.commit();
+                    return;
+                case UPLOAD:
+                    break;
+            }
+        }
+
+        if (journal != null) {
+            journalFlowFile(context, session, flowFile);
+            return;
+        }
+
         //This is the way to get the value of a property
         String url = context.getProperty(CKAN_url).getValue();
         String tagList = context.getProperty(tag_list).getValue();
@@ -190,8 +816,27 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         Path file = Paths.get(path);
         session.exportTo(flowFile, file, false);
 
+        byte[] uploadKey = null;
+        if (dedupJournal != null) {
+            try (InputStream content = Files.newInputStream(file)) {
+                uploadKey = UploadDedupJournal.key(flowFile.getAttribute(CoreAttributes.UUID.key()), content);
+            } catch (IOException ioe) {
+                getLogger().error("Cannot hash {}: {}", new Object[]{file, ioe.toString()});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                session.commit();
+                return;
+            }
+            if (dedupJournal.contains(uploadKey)) {
+                getLogger().info("{} was already uploaded, not uploading it again", new Object[]{flowFile});
+                session.transfer(session.putAttribute(flowFile, "ckan.upload.replayed", "true"), REL_SUCCESS);
+                session.commit();
+                return;
+            }
+        }
+
         final String apiKey = context.getProperty(api_key).getValue();
-        final String packageName = context.getProperty(package_name).getValue();
+        //The same package on every path: single, replicated, grouped, coalesced and write-behind uploads
+        final String packageName = datasetName(context, flowFile);
         final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
         final boolean packagePrivate = context.getProperty(package_private).getValue().equals("True");
 
@@ -199,54 +844,56 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         final String resourceSuffixRegex = context.getProperty(resource_suffix_regex).getValue();
         final String resourceFormat = context.getProperty(resource_format).getValue();
 
-        String datasetName = flowFile.getAttribute("ckan_package_name");
-
-        //If the property package_name is not filled, then use the filename (without extension) as package name
-        //ToDo: Fix an error, the processor throws null pointer when package_name property is empty
-        String filenameNoExtension = "";
+        final String organizationId = context.getProperty(organization_id).getValue();
 
-        // We can either use the attribute, the property or the filename as package name
-        // The order of priority should be property -> attribute -> filename
-        if (datasetName != null && datasetName.length() > 0) {
-            filenameNoExtension = datasetName;
-            getLogger().info("Dataset name got from attribute: " + filenameNoExtension);
-        } else if (context.getProperty(package_name).isSet()) {
-            filenameNoExtension = context.getProperty(package_name).getValue();
-            getLogger().info("Dataset name got from processor property: " + filenameNoExtension);
-        }
-        //Check if the property is filled with spaces, empty, or null to use the file name as filename
-        if (filenameNoExtension == null || filenameNoExtension.isEmpty() || filenameNoExtension.trim().length() == 0) {
-            filenameNoExtension = getFileName(filename);
-            getLogger().info("Dataset name got from filename: " + filenameNoExtension);
+        if (!targets.isEmpty()) {
+            replicate(context, session, flowFile, file, uploadKey, organizationId, packageName, packageDescription, packagePrivate, tagList,
+                    resourceName, resourceSuffixRegex, resourceFormat);
+            return;
         }
-        final String organizationId = context.getProperty(organization_id).getValue();
 
         //  *******************
         //   Main logic of the CKAN uploader
         // - Create the CKAN API Handler
-        // - Check that the target organization exists in CKAN
-        //      - If it doesn't, create it
-        // - Check if the package exists in CKAN
-        //      - If it doesn't, create it
+        // - Check that the target organization exists in the metadata caches or in CKAN
+        //      - If it doesn't, create it, or wait for the node creating it
+        // - Check if the package exists in the metadata caches or in CKAN
+        //      - If it doesn't, create it, or wait for the node creating it
         // - Upload the file to CKAN, with it's filename as ID
         // -- In case of any exception in the process, send the flowfile to FAILURE.
         // *********************
 
         CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(rateLimiter);
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        ckan_api_handler.setHedgePolicy(hedgePolicy);
+        ckan_api_handler.setMetadataCache(LocalMetadataCache.forEndpoint(url, apiKey), sharedMetadataCache, metadataCacheTtl);
+        if (LOOKUP_SHOW.getValue().equals(context.getProperty(package_lookup).getValue())) {
+            ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+            ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(url, apiKey));
+        }
         try {
-            if (!ckan_api_handler.organizationExists(organizationId))
-                ckan_api_handler.createOrganization(organizationId);
-
-            if (!ckan_api_handler.packageExists(packageName))
-                ckan_api_handler.createPackage(organizationId, packageName, packageDescription, packagePrivate, tagList);
+            ckan_api_handler.ensureOrganization(organizationId);
+            ckan_api_handler.ensurePackage(organizationId, packageName, packageDescription, packagePrivate, tagList);
 
             if (ckan_api_handler.createOrUpdateResource(packageName, resourceName, resourceSuffixRegex, file.toFile().toString(), resourceFormat)) {
                 getLogger().info("File tried to be uploaded to CKAN: {}", new Object[]{file.toFile().toString()});
+                if (uploadKey != null) {
+                    //Remembered before the session commits, so a rollback from here on does not upload the file twice
+                    dedupJournal.record(uploadKey);
+                }
                 session.transfer(flowFile, REL_SUCCESS);
                 ckan_api_handler.close();
             } else {
                 session.transfer(session.penalize(flowFile), REL_FAILURE);
             }
+        } catch (CircuitBreakerOpenException cboe) {
+            getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, cboe.getMessage()});
+            ckan_api_handler.close();
+            session.rollback();
+            context.yield();
+            return;
         } catch (IOException ioe) {
             getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {}.",
                     new Object[]{file, url, organizationId});
@@ -261,8 +908,600 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
     }
 
 
+    /**
+     * Take the queued flowfiles, sort them into their groups and upload the first group that is complete or whose
+     * window is over to its package in one revision. The other flowfiles go back to the queue as they are, not
+     * penalized, so the members of a group that arrive apart are all seen together by the next trigger; when no
+     * group is ready the processor yields.
+     */
+    private void uploadGroup(final ProcessContext context, final ProcessSession session) {
+        final boolean byFragment = GROUP_FRAGMENT.getValue().equals(context.getProperty(group_by).getValue());
+        final int maxSize = context.getProperty(group_max_size).asInteger();
+        final long maxWait = context.getProperty(group_max_wait).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        final List<FlowFile> group;
+        final String groupKey;
+        groupLock.lock();
+        try {
+            final AtomicInteger scanned = new AtomicInteger();
+            final List<FlowFile> queued = session.get(flowFile -> scanned.incrementAndGet() > GROUP_SCAN_LIMIT
+                    ? FlowFileFilter.FlowFileFilterResult.REJECT_AND_TERMINATE
+                    : FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE);
+            if (queued.isEmpty()) {
+                return;
+            }
+            final Map<String, List<FlowFile>> bins = new LinkedHashMap<>();
+            for (FlowFile flowFile : queued) {
+                bins.computeIfAbsent(groupKey(context, flowFile, byFragment), key -> new ArrayList<>()).add(flowFile);
+            }
+            //Forget the groups no longer queued, unless the queue was too long to see all of them
+            if (scanned.get() <= GROUP_SCAN_LIMIT) {
+                groupFirstSeen.keySet().retainAll(bins.keySet());
+            }
+
+            final long now = System.currentTimeMillis();
+            String ready = null;
+            boolean complete = false;
+            for (Map.Entry<String, List<FlowFile>> bin : bins.entrySet()) {
+                final long firstSeen = groupFirstSeen.computeIfAbsent(bin.getKey(), key -> now);
+                final boolean full = bin.getValue().size() >= maxSize
+                        || (byFragment && bin.getValue().size() >= fragmentCount(bin.getValue().get(0)));
+                if (ready == null && (full || now - firstSeen >= maxWait)) {
+                    ready = bin.getKey();
+                    complete = full;
+                }
+            }
+            if (ready == null) {
+                for (FlowFile flowFile : queued) {
+                    session.transfer(flowFile);
+                }
+                session.commit();
+                context.yield();
+                return;
+            }
+
+            groupKey = ready;
+            group = bins.get(groupKey);
+            if (byFragment) {
+                group.sort(Comparator.comparingInt(flowFile -> fragmentIndex(flowFile)));
+            }
+            while (group.size() > maxSize) {
+                session.transfer(group.remove(group.size() - 1));
+            }
+            for (Map.Entry<String, List<FlowFile>> bin : bins.entrySet()) {
+                if (!bin.getKey().equals(groupKey)) {
+                    for (FlowFile flowFile : bin.getValue()) {
+                        session.transfer(flowFile);
+                    }
+                }
+            }
+            if (!complete) {
+                getLogger().warn("Group {} is not complete after {} ms, uploading its {} flowfiles", new Object[]{groupKey, maxWait, group.size()});
+            }
+            groupFirstSeen.remove(groupKey);
+        } finally {
+            groupLock.unlock();
+        }
+
+        if (context.getProperty(coalesce_window).asTimePeriod(TimeUnit.MILLISECONDS) > 0) {
+            //Within a group the window is the group itself, only the newest flowfile of each resource is uploaded
+            Map<String, FlowFile> newest = new HashMap<>();
+            for (FlowFile flowFile : group) {
+                newest.merge(resourceName(flowFile), flowFile, (a, b) -> isNewer(b, a) ? b : a);
+            }
+            for (Iterator<FlowFile> flowFiles = group.iterator(); flowFiles.hasNext(); ) {
+                FlowFile flowFile = flowFiles.next();
+                if (newest.get(resourceName(flowFile)) != flowFile) {
+                    flowFiles.remove();
+                    session.transfer(flowFile, REL_SUPERSEDED);
+                }
+            }
+        }
+
+        final String url = context.getProperty(CKAN_url).getValue();
+        final String apiKey = context.getProperty(api_key).getValue();
+        final String tagList = context.getProperty(tag_list).getValue();
+        final String organizationId = context.getProperty(organization_id).getValue();
+        final String packageName = datasetName(context, group.get(0));
+        final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(group.get(0)).getValue();
+        final boolean packagePrivate = context.getProperty(package_private).getValue().equals("True");
+        final String resourceFormat = context.getProperty(resource_format).getValue();
+
+        //  *******************
+        //   Main logic of the grouped upload
+        // - Create the organization and package if needed, as for single uploads
+        // - Export every flowfile of the group to a temporary file
+        // - Replace the file of the resources the package already has with the same name, append the others
+        // - Write them all with a single package_revise request
+        // -- In case of any exception in the process, send the whole group to FAILURE.
+        // *********************
+
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(rateLimiter);
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        ckan_api_handler.setHedgePolicy(hedgePolicy);
+        ckan_api_handler.setMetadataCache(LocalMetadataCache.forEndpoint(url, apiKey), sharedMetadataCache, metadataCacheTtl);
+        if (LOOKUP_SHOW.getValue().equals(context.getProperty(package_lookup).getValue())) {
+            ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+            ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(url, apiKey));
+        }
+        Path tempDir = null;
+        try {
+            ckan_api_handler.ensureOrganization(organizationId);
+            ckan_api_handler.ensurePackage(organizationId, packageName, packageDescription, packagePrivate, tagList);
+
+            Map<String, String> existing = new HashMap<>();
+            Package_ dataset = ckan_api_handler.getPackageByName(packageName);
+            if (dataset != null && dataset.getResources() != null) {
+                for (Resource resource : dataset.getResources()) {
+                    existing.put(resource.getName(), resource.getId());
+                }
+            }
+
+            tempDir = Files.createTempDirectory("ckan-group");
+            List<ResourceUpload> uploads = new ArrayList<>();
+            for (FlowFile flowFile : group) {
+                String resourceFileName = resourceName(flowFile);
+                //One directory per flowfile, equally named flowfiles do not collide
+                Path file = Files.createDirectory(tempDir.resolve(String.valueOf(uploads.size()))).resolve(resourceFileName);
+                session.exportTo(flowFile, file, false);
+                if (existing.containsKey(resourceFileName)) {
+                    uploads.add(ResourceUpload.replace(existing.get(resourceFileName), resourceFileName, file.toFile()));
+                } else {
+                    Resource metadata = new Resource();
+                    metadata.setName(resourceFileName);
+                    metadata.setFormat(resourceFormat);
+                    uploads.add(ResourceUpload.file(resourceFileName, metadata, file.toFile()));
+                }
+            }
+
+            ckan_api_handler.reviseResources(packageName, uploads);
+            getLogger().info("Uploaded {} flowfiles to package {} in one revision", new Object[]{group.size(), packageName});
+            session.transfer(group, REL_SUCCESS);
+        } catch (CircuitBreakerOpenException cboe) {
+            getLogger().warn("CKAN {} is unavailable, returning the flowfiles to the queue: {}", new Object[]{url, cboe.getMessage()});
+            session.rollback();
+            context.yield();
+            return;
+        } catch (IOException ioe) {
+            getLogger().log(LogLevel.ERROR, "Error while uploading {} flowfiles to CKAN {}: Package {}.",
+                    new Object[]{group.size(), url, packageName});
+            getLogger().error(ioe.toString());
+            for (FlowFile flowFile : group) {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        } catch (Exception e) {
+            getLogger().error("Unexpected error");
+            getLogger().error(e.toString());
+            for (FlowFile flowFile : group) {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        } finally {
+            ckan_api_handler.close();
+            if (tempDir != null) {
+                FileUtils.deleteQuietly(tempDir.toFile());
+            }
+        }
+        session.commit();
+    }
+
+    /**
+     * Write-behind: copy the flowfile to the spool, journal where it has to be uploaded and acknowledge it. It is
+     * handed to the uploader pool once the session is committed.
+     */
+    private void journalFlowFile(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) {
+        final WriteBehindJournal.Entry entry = new WriteBehindJournal.Entry();
+        entry.id = flowFile.getAttribute(CoreAttributes.UUID.key());
+        entry.organization = context.getProperty(organization_id).getValue();
+        entry.packageName = datasetName(context, flowFile);
+        entry.packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
+        entry.packagePrivate = context.getProperty(package_private).getValue().equals("True");
+        entry.tags = context.getProperty(tag_list).getValue();
+        entry.resourceName = context.getProperty(resource_name).getValue();
+        entry.resourceSuffix = context.getProperty(resource_suffix_regex).getValue();
+        entry.resourceFormat = context.getProperty(resource_format).getValue();
+        try {
+            Path file = journal.spoolFile(entry.id, flowFile.getAttribute(CoreAttributes.FILENAME.key()));
+            session.exportTo(flowFile, file, false);
+            entry.file = file.toString();
+            journal.add(entry);
+        } catch (IOException ioe) {
+            getLogger().error("Cannot journal {} for write-behind: {}", new Object[]{flowFile, ioe.toString()});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            session.commit();
+            return;
+        }
+        session.transfer(flowFile, REL_SUCCESS);
+        //A crash before this commit journals the flowfile twice, and it is uploaded twice: delivery is at least once
+        session.commit();
+        writeBehindExecutor.execute(() -> drain(entry));
+    }
+
+    /**
+     * Upload a journaled flowfile, as uploadFlowFile does. Failed uploads are retried with exponential backoff and
+     * given up after the configured attempts; while CKAN is rejecting calls the upload just waits for its turn.
+     */
+    private void drain(final WriteBehindJournal.Entry entry) {
+        final WriteBehindJournal journal = this.journal;
+        final ScheduledExecutorService executor = writeBehindExecutor;
+        if (journal == null || executor == null) {
+            return;
+        }
+        if (circuitBreaker.isRejecting() || !concurrencyLimit.tryAcquire()) {
+            reschedule(executor, entry, 1000);
+            return;
+        }
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(writeBehindUrl, writeBehindApiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(rateLimiter);
+        ckan_api_handler.setConcurrencyLimit(concurrencyLimit);
+        ckan_api_handler.setHedgePolicy(hedgePolicy);
+        ckan_api_handler.setMetadataCache(LocalMetadataCache.forEndpoint(writeBehindUrl, writeBehindApiKey), sharedMetadataCache, metadataCacheTtl);
+        if (writeBehindLookupShow) {
+            ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+            ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(writeBehindUrl, writeBehindApiKey));
+        }
+        try {
+            final UploadDedupJournal dedupJournal = this.dedupJournal;
+            byte[] uploadKey = null;
+            if (dedupJournal != null) {
+                try (InputStream content = Files.newInputStream(Paths.get(entry.file))) {
+                    uploadKey = UploadDedupJournal.key(entry.id, content);
+                }
+                if (dedupJournal.contains(uploadKey)) {
+                    //Uploaded before a crash that kept it from being marked as done
+                    getLogger().info("Journaled file {} was already uploaded", new Object[]{entry.file});
+                    journal.done(entry);
+                    return;
+                }
+            }
+
+            ckan_api_handler.ensureOrganization(entry.organization);
+            ckan_api_handler.ensurePackage(entry.organization, entry.packageName, entry.packageDescription, entry.packagePrivate, entry.tags);
+
+            //Only an upload CKAN accepted is done, a rejection throws and is retried like any other failure
+            if (!ckan_api_handler.createOrUpdateResource(entry.packageName, entry.resourceName, entry.resourceSuffix, entry.file, entry.resourceFormat)) {
+                throw new IOException("CKAN did not accept the upload of " + entry.file);
+            }
+            if (uploadKey != null) {
+                dedupJournal.record(uploadKey);
+            }
+            journal.done(entry);
+            getLogger().info("Journaled file uploaded to CKAN: {}", new Object[]{entry.file});
+        } catch (CircuitBreakerOpenException cboe) {
+            reschedule(executor, entry, 1000);
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                //Stopping, the entry stays pending in the journal
+                return;
+            }
+            int attempts;
+            try {
+                attempts = journal.attempted(entry);
+            } catch (IOException ioe) {
+                //Still counted in memory, only a restart forgets it
+                getLogger().warn("Cannot journal the failed attempt of {}: {}", new Object[]{entry.file, ioe.toString()});
+                attempts = ++entry.attempts;
+            }
+            if (attempts >= writeBehindMaxAttempts) {
+                getLogger().error("Giving up the upload of {} to package {} after {} attempts: {}",
+                        new Object[]{entry.file, entry.packageName, attempts, e.toString()});
+                try {
+                    journal.failed(entry);
+                } catch (IOException ioe) {
+                    getLogger().error("Cannot record the failed upload of {}: {}", new Object[]{entry.file, ioe.toString()});
+                }
+            } else {
+                long delay = Math.min(writeBehindRetryDelay << Math.min(attempts - 1, 20), TimeUnit.MINUTES.toMillis(10));
+                getLogger().warn("Upload of {} failed, retrying in {} ms: {}", new Object[]{entry.file, delay, e.toString()});
+                reschedule(executor, entry, delay);
+            }
+        } finally {
+            concurrencyLimit.release();
+            ckan_api_handler.close();
+        }
+    }
+
+    private void reschedule(final ScheduledExecutorService executor, final WriteBehindJournal.Entry entry, final long delay) {
+        try {
+            executor.schedule(() -> drain(entry), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //Stopping, the entry stays pending in the journal
+        }
+    }
+
+    /**
+     * A CKAN instance flowfiles are replicated to, with its shared circuit breaker, rate limiter, concurrency limit and
+     * hedge policy (null when hedged reads are off)
+     */
+    private static final class Target {
+        private final String url;
+        private final String apiKey;
+        private final CircuitBreaker circuitBreaker;
+        private final RateLimiter rateLimiter;
+        private final AdaptiveConcurrencyLimit concurrencyLimit;
+        private final HedgePolicy hedgePolicy;
+
+        private Target(String url, String apiKey, CircuitBreaker circuitBreaker, RateLimiter rateLimiter, AdaptiveConcurrencyLimit concurrencyLimit,
+                       HedgePolicy hedgePolicy) {
+            this.url = url;
+            this.apiKey = apiKey;
+            this.circuitBreaker = circuitBreaker;
+            this.rateLimiter = rateLimiter;
+            this.concurrencyLimit = concurrencyLimit;
+            this.hedgePolicy = hedgePolicy;
+        }
+    }
+
+    /**
+     * Upload the exported flowfile to CKAN Url and every replica at the same time, and route it depending on how many
+     * of them succeeded. The outcome of every target goes into the ckan.target.N attributes, in the order of the
+     * targets with CKAN Url as 0. When too few targets succeeded only because the others were unavailable or busy,
+     * the flowfile goes back to the queue instead of to FAILURE, with the targets that have it in its
+     * ckan.replicated.&lt;processor id&gt; attribute, so the retry only uploads to the others. With the dedup journal
+     * every target also remembers its own uploads across replays.
+     */
+    private void replicate(final ProcessContext context, final ProcessSession session, FlowFile flowFile, final Path file,
+                           final byte[] uploadKey, final String organizationId, final String packageName, final String packageDescription,
+                           final boolean packagePrivate, final String tagList, final String resourceName, final String resourceSuffixRegex,
+                           final String resourceFormat) {
+        final List<Target> targets = this.targets;
+        final boolean lookupShow = LOOKUP_SHOW.getValue().equals(context.getProperty(package_lookup).getValue());
+        final String replicatedAttribute = "ckan.replicated." + getIdentifier();
+        final Set<String> replicated = new LinkedHashSet<>();
+        if (flowFile.getAttribute(replicatedAttribute) != null) {
+            replicated.addAll(Arrays.asList(flowFile.getAttribute(replicatedAttribute).split("\\s+")));
+        }
+        final List<Future<String>> uploads = new ArrayList<>();
+        for (final Target target : targets) {
+            uploads.add(replicationExecutor.submit(() -> {
+                final byte[] targetKey = uploadKey == null ? null : UploadDedupJournal.key(uploadKey, target.url);
+                if (replicated.contains(target.url) || (targetKey != null && dedupJournal.contains(targetKey))) {
+                    return "replayed";
+                }
+                if (target.circuitBreaker.isRejecting()) {
+                    return "unavailable";
+                }
+                //CKAN Url is already held by onTrigger, the replicas respect their own limit
+                final boolean permit = target.concurrencyLimit != concurrencyLimit;
+                if (permit && !target.concurrencyLimit.tryAcquire()) {
+                    return "busy";
+                }
+                CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(target.url, target.apiKey);
+                ckan_api_handler.setCircuitBreaker(target.circuitBreaker);
+                ckan_api_handler.setRateLimiter(target.rateLimiter);
+                ckan_api_handler.setConcurrencyLimit(target.concurrencyLimit);
+                ckan_api_handler.setHedgePolicy(target.hedgePolicy);
+                ckan_api_handler.setMetadataCache(LocalMetadataCache.forEndpoint(target.url, target.apiKey), sharedMetadataCache, metadataCacheTtl);
+                if (lookupShow) {
+                    ckan_api_handler.setPackageLookup(CKAN_API_Handler.PackageLookup.SHOW);
+                    ckan_api_handler.setResponseCache(ResponseCache.forEndpoint(target.url, target.apiKey));
+                }
+                try {
+                    ckan_api_handler.ensureOrganization(organizationId);
+                    ckan_api_handler.ensurePackage(organizationId, packageName, packageDescription, packagePrivate, tagList);
+
+                    if (!ckan_api_handler.createOrUpdateResource(packageName, resourceName, resourceSuffixRegex, file.toString(), resourceFormat)) {
+                        return "failure: not accepted";
+                    }
+                    if (targetKey != null) {
+                        try {
+                            dedupJournal.record(targetKey);
+                        } catch (IOException ioe) {
+                            getLogger().warn("Cannot record the upload of {} to {}: {}", new Object[]{file, target.url, ioe.toString()});
+                        }
+                    }
+                    return "success";
+                } catch (CircuitBreakerOpenException cboe) {
+                    return "unavailable";
+                } catch (Exception e) {
+                    getLogger().warn("Error while uploading file {} to CKAN {}: {}", new Object[]{file, target.url, e.toString()});
+                    return "failure: " + e.getMessage();
+                } finally {
+                    ckan_api_handler.close();
+                    if (permit) {
+                        target.concurrencyLimit.release();
+                    }
+                }
+            }));
+        }
+
+        Map<String, String> attributes = new HashMap<>();
+        int succeeded = 0;
+        boolean retryable = true;
+        for (int i = 0; i < targets.size(); i++) {
+            String status;
+            try {
+                status = uploads.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = "interrupted";
+            } catch (ExecutionException e) {
+                status = "failure: " + e.getCause();
+            }
+            if ("success".equals(status) || "replayed".equals(status)) {
+                succeeded++;
+                replicated.add(targets.get(i).url);
+            } else if (!"unavailable".equals(status) && !"busy".equals(status)) {
+                retryable = false;
+            }
+            attributes.put("ckan.target." + i + ".url", targets.get(i).url);
+            attributes.put("ckan.target." + i + ".status", status);
+        }
+        attributes.put("ckan.replication.targets", String.valueOf(targets.size()));
+        attributes.put("ckan.replication.succeeded", String.valueOf(succeeded));
+        flowFile = session.putAllAttributes(flowFile, attributes);
+
+        final String mode = context.getProperty(replication_success).getValue();
+        final int required = REPLICATION_ANY.getValue().equals(mode) ? 1
+                : REPLICATION_QUORUM.getValue().equals(mode) ? targets.size() / 2 + 1
+                : targets.size();
+        if (succeeded >= required) {
+            getLogger().info("File uploaded to {} of {} CKAN instances: {}", new Object[]{succeeded, targets.size(), file});
+            if (uploadKey != null) {
+                try {
+                    dedupJournal.record(uploadKey);
+                } catch (IOException ioe) {
+                    getLogger().warn("Cannot record the upload of {}: {}", new Object[]{file, ioe.toString()});
+                }
+            }
+            session.transfer(session.removeAttribute(flowFile, replicatedAttribute), REL_SUCCESS);
+        } else if (retryable) {
+            getLogger().warn("File uploaded to {} of {} CKAN instances, {} needed, the others are unavailable or busy, returning it to the queue: {}",
+                    new Object[]{succeeded, targets.size(), required, file});
+            //Back to the queue with the targets that have it, committed so the retry does not upload to them again
+            session.transfer(session.putAttribute(flowFile, replicatedAttribute, String.join(" ", replicated)));
+            session.commit();
+            context.yield();
+            return;
+        } else {
+            flowFile = session.putAttribute(flowFile, replicatedAttribute, String.join(" ", replicated));
+            getLogger().error("File uploaded to {} of {} CKAN instances, {} needed: {}", new Object[]{succeeded, targets.size(), required, file});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+        session.commit();
+    }
+
+    private enum Coalescing {UPLOAD, WAIT, SUPERSEDED}
+
+    /**
+     * The newest flowfile seen for a resource, and when the coalescing window of the resource started
+     */
+    private static final class PendingUpload {
+        private final String uuid;
+        private final long entryDate;
+        private final long windowStart;
+        private final boolean uploaded;
+        private final long lastSeen;
+
+        private PendingUpload(String uuid, long entryDate, long windowStart, boolean uploaded, long lastSeen) {
+            this.uuid = uuid;
+            this.entryDate = entryDate;
+            this.windowStart = windowStart;
+            this.uploaded = uploaded;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Decide what to do with a flowfile for a resource: upload it, put it back to wait for the end of the coalescing
+     * window, or drop it because a newer flowfile for the resource has been seen. After an upload the resource keeps
+     * a tombstone, so a late older flowfile does not overwrite the newer content.
+     */
+    private Coalescing coalesce(final String resourceKey, final FlowFile flowFile, final long window, final int maxKeys) {
+        final long now = System.currentTimeMillis();
+        if (!pendingUploads.containsKey(resourceKey) && pendingUploads.size() >= maxKeys) {
+            //Forget the resources whose flowfiles have not come back for a long time, dropped from the queue or long uploaded
+            final long staleAfter = Math.max(window * 10, TimeUnit.MINUTES.toMillis(1));
+            pendingUploads.values().removeIf(pending -> now - pending.lastSeen > staleAfter);
+            if (pendingUploads.size() >= maxKeys) {
+                return Coalescing.UPLOAD;
+            }
+        }
+
+        final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+        final Coalescing[] decision = new Coalescing[1];
+        pendingUploads.compute(resourceKey, (key, pending) -> {
+            if (pending == null || (pending.uploaded && isNewer(flowFile, pending))) {
+                //First flowfile of a new window
+                decision[0] = Coalescing.WAIT;
+                return new PendingUpload(uuid, flowFile.getEntryDate(), now, false, now);
+            }
+            if (pending.uuid.equals(uuid)) {
+                if (pending.uploaded || now - pending.windowStart >= window) {
+                    decision[0] = Coalescing.UPLOAD;
+                    return new PendingUpload(uuid, pending.entryDate, pending.windowStart, true, now);
+                }
+                decision[0] = Coalescing.WAIT;
+                return new PendingUpload(uuid, pending.entryDate, pending.windowStart, false, now);
+            }
+            if (!isNewer(flowFile, pending)) {
+                decision[0] = Coalescing.SUPERSEDED;
+                return pending;
+            }
+            //Newer than the one waiting, which is superseded when it comes back; the window does not restart
+            decision[0] = now - pending.windowStart >= window ? Coalescing.UPLOAD : Coalescing.WAIT;
+            return new PendingUpload(uuid, flowFile.getEntryDate(), pending.windowStart, decision[0] == Coalescing.UPLOAD, now);
+        });
+        return decision[0];
+    }
+
+    private static boolean isNewer(final FlowFile flowFile, final PendingUpload pending) {
+        return flowFile.getEntryDate() > pending.entryDate
+                || (flowFile.getEntryDate() == pending.entryDate && flowFile.getAttribute(CoreAttributes.UUID.key()).compareTo(pending.uuid) > 0);
+    }
+
+    private static boolean isNewer(final FlowFile flowFile, final FlowFile other) {
+        return flowFile.getEntryDate() > other.getEntryDate()
+                || (flowFile.getEntryDate() == other.getEntryDate() && flowFile.getId() > other.getId());
+    }
+
+    /**
+     * Name of the resource a flowfile is uploaded as, its filename with only alphanumeric characters and dots
+     */
+    private static String resourceName(final FlowFile flowFile) {
+        return flowFile.getAttribute(CoreAttributes.FILENAME.key()).replaceAll("[^\\.a-zA-Z0-9]+", "_");
+    }
+
+    /**
+     * The group a flowfile belongs to: its fragment identifier when grouping by fragment, else its package
+     */
+    private String groupKey(final ProcessContext context, final FlowFile flowFile, final boolean byFragment) {
+        if (byFragment && flowFile.getAttribute("fragment.identifier") != null) {
+            return "fragment/" + flowFile.getAttribute("fragment.identifier");
+        }
+        return "package/" + datasetName(context, flowFile);
+    }
+
+    /**
+     * Name of the package a flowfile goes to, on every upload path: the ckan_package_name attribute, else the
+     * package_name property, else the filename without extension
+     */
+    private String datasetName(final ProcessContext context, final FlowFile flowFile) {
+        String datasetName = flowFile.getAttribute("ckan_package_name");
+        if (datasetName != null && !datasetName.trim().isEmpty()) {
+            getLogger().debug("Dataset name got from attribute: " + datasetName);
+            return datasetName;
+        }
+        datasetName = context.getProperty(package_name).getValue();
+        if (datasetName != null && !datasetName.trim().isEmpty()) {
+            getLogger().debug("Dataset name got from processor property: " + datasetName);
+            return datasetName;
+        }
+        return getFileName(flowFile.getAttribute(CoreAttributes.FILENAME.key()));
+    }
+
+    private static int fragmentCount(final FlowFile flowFile) {
+        try {
+            return Integer.parseInt(flowFile.getAttribute("fragment.count"));
+        } catch (NumberFormatException e) {
+            //Unknown size, the group is only complete when its window is over
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static int fragmentIndex(final FlowFile flowFile) {
+        try {
+            return Integer.parseInt(flowFile.getAttribute("fragment.index"));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
     private String getFileName(String file) {
         getLogger().log(LogLevel.INFO, "Filename to be processed: " + file);
         return file.split("\\.")[0];
     }
+
+    /**
+     * Publish the current concurrency limit of the CKAN instance as the "CKAN concurrency limit" counter
+     */
+    private void reportConcurrencyLimit(final ProcessSession session) {
+        long current = concurrencyLimit.getLimit();
+        long previous = reportedConcurrencyLimit.getAndSet(current);
+        if (current != previous) {
+            session.adjustCounter("CKAN concurrency limit", current - previous, true);
+        }
+    }
 }
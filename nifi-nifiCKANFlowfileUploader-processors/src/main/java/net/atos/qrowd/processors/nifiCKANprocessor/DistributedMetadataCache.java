@@ -0,0 +1,78 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.handlers.MetadataCache;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Metadata cache shared by every node of the cluster through a DistributedMapCacheClient controller service, so that
+ * an organization or package found or created by one node is not looked up or created again by the others. The client
+ * has to support compare-and-replace, as the DistributedMapCacheClientService does, so that
+ * {@link #replace(String, String, String)} is atomic.
+ */
+class DistributedMetadataCache implements MetadataCache {
+
+    private static final Serializer<String> SERIALIZER = (value, out) -> out.write(value.getBytes(StandardCharsets.UTF_8));
+    private static final Deserializer<String> DESERIALIZER = input -> input == null || input.length == 0 ? null : new String(input, StandardCharsets.UTF_8);
+
+    private final AtomicDistributedMapCacheClient<?> client;
+
+    DistributedMetadataCache(AtomicDistributedMapCacheClient<?> client) {
+        this.client = client;
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return client.get(key, SERIALIZER, DESERIALIZER);
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        client.put(key, value, SERIALIZER, SERIALIZER);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) throws IOException {
+        return client.putIfAbsent(key, value, SERIALIZER, SERIALIZER);
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value) throws IOException {
+        return compareAndReplace(client, key, expected, value);
+    }
+
+    private <R> boolean compareAndReplace(AtomicDistributedMapCacheClient<R> atomic, String key, String expected, String value) throws IOException {
+        AtomicCacheEntry<String, String, R> entry = atomic.fetch(key, SERIALIZER, DESERIALIZER);
+        if (entry == null || !expected.equals(entry.getValue())) {
+            return false;
+        }
+        entry.setValue(value);
+        return atomic.replace(entry, SERIALIZER, SERIALIZER);
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+        client.remove(key, SERIALIZER);
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Uploads already made by CKAN_Flowfile_Uploader, so that a flowfile replayed after its upload succeeded (a session
+ * rolled back, a node failing over) is not uploaded again as a second resource. Uploads are identified by the
+ * SHA-256 of the flowfile uuid and the SHA-256 of its content.
+ * <p>
+ * The keys are kept in a memory-mapped file of fixed-size records: a 16 byte header (magic number and record count)
+ * followed by records of a 32 byte key and the 8 byte time of the upload. Records older than the time to live are
+ * dropped when the file is full and when it is opened, by writing the others to a new file that atomically replaces
+ * it; the new file is twice the size if it would still be mostly full.
+ */
+class UploadDedupJournal implements Closeable {
+
+    private static final int MAGIC = 0x434b4431;
+    private static final int HEADER = 16;
+    private static final int KEY_SIZE = 32;
+    private static final int RECORD = KEY_SIZE + 8;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final long ttl;
+    private final Path file;
+    private FileChannel channel;
+    private final Map<String, Long> uploads = new HashMap<>();
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+
+    /**
+     * @param file       File of the journal, created if it does not exist
+     * @param ttlMillis  How long an upload is remembered
+     */
+    UploadDedupJournal(Path file, long ttlMillis) throws IOException {
+        this.ttl = ttlMillis;
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        capacity = INITIAL_CAPACITY;
+        if (size >= HEADER) {
+            map((int) ((size - HEADER) / RECORD));
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not an upload journal");
+            }
+            count = Math.min(buffer.getInt(4), capacity);
+            byte[] key = new byte[KEY_SIZE];
+            for (int i = 0; i < count; i++) {
+                int position = HEADER + i * RECORD;
+                for (int b = 0; b < KEY_SIZE; b++) {
+                    key[b] = buffer.get(position + b);
+                }
+                uploads.put(hex(key), buffer.getLong(position + KEY_SIZE));
+            }
+        }
+        compact();
+    }
+
+    /**
+     * @return true if the upload with this key was made within the time to live
+     */
+    synchronized boolean contains(byte[] key) {
+        Long time = uploads.get(hex(key));
+        return time != null && System.currentTimeMillis() - time < ttl;
+    }
+
+    /**
+     * Remember an upload. It is on disk when this returns.
+     */
+    synchronized void record(byte[] key) throws IOException {
+        if (count >= capacity) {
+            compact();
+        }
+        long now = System.currentTimeMillis();
+        write(count, key, now);
+        count++;
+        //The record is complete before the count includes it, a crash in between only loses this record
+        buffer.putInt(4, count);
+        buffer.force();
+        uploads.put(hex(key), now);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Key of the upload of a flowfile
+     *
+     * @param uuid    Uuid of the flowfile
+     * @param content Content of the flowfile, read to the end
+     */
+    static byte[] key(String uuid, InputStream content) throws IOException {
+        MessageDigest contentDigest = sha256();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = content.read(chunk)) != -1) {
+            contentDigest.update(chunk, 0, read);
+        }
+        MessageDigest keyDigest = sha256();
+        keyDigest.update(uuid.getBytes(StandardCharsets.UTF_8));
+        keyDigest.update(contentDigest.digest());
+        return keyDigest.digest();
+    }
+
+    /**
+     * Key of the upload of a flowfile to one of several CKAN instances
+     *
+     * @param key    Key of the upload of the flowfile
+     * @param target Url of the CKAN instance
+     */
+    static byte[] key(byte[] key, String target) {
+        MessageDigest keyDigest = sha256();
+        keyDigest.update(key);
+        keyDigest.update(target.getBytes(StandardCharsets.UTF_8));
+        return keyDigest.digest();
+    }
+
+    /**
+     * Drop the expired uploads and write the others to a new file that replaces the journal, so that a crash leaves
+     * either the old or the new one
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> times = uploads.values().iterator(); times.hasNext(); ) {
+            if (now - times.next() >= ttl) {
+                times.remove();
+            }
+        }
+        int records = Math.max(capacity, INITIAL_CAPACITY);
+        if (uploads.size() >= records * 3 / 4) {
+            records *= 2;
+        }
+
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer content = ByteBuffer.allocate(HEADER + uploads.size() * RECORD);
+        content.putInt(MAGIC).putInt(uploads.size()).putLong(0);
+        for (Map.Entry<String, Long> upload : uploads.entrySet()) {
+            content.put(unhex(upload.getKey())).putLong(upload.getValue());
+        }
+        content.flip();
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(records);
+        count = uploads.size();
+    }
+
+    private void map(int records) throws IOException {
+        capacity = records;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) records * RECORD);
+    }
+
+    private void write(int index, byte[] key, long time) {
+        int position = HEADER + index * RECORD;
+        for (int b = 0; b < KEY_SIZE; b++) {
+            buffer.put(position + b, key[b]);
+        }
+        buffer.putLong(position + KEY_SIZE, time);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
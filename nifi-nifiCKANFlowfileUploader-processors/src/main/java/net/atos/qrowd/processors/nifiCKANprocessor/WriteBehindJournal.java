@@ -0,0 +1,229 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the uploads accepted by CKAN_Flowfile_Uploader in write-behind mode. The content of every
+ * flowfile is copied to <code>spool/&lt;id&gt;/&lt;filename&gt;</code> and an <i>add</i> line with where to upload it
+ * is appended to <code>journal.jsonl</code>; an <i>attempt</i> line is appended after every failed try, so the limit
+ * on attempts holds across restarts, and a <i>done</i> line once it is uploaded, or given up and moved to
+ * <code>failed/</code>. Reading the journal back gives the uploads still pending after a restart, and it is rewritten
+ * with only those when the lines it no longer needs outnumber them.
+ */
+class WriteBehindJournal implements Closeable {
+
+    private static final String ADD = "add";
+    private static final String ATTEMPT = "attempt";
+    private static final String DONE = "done";
+    private static final int COMPACT_AFTER = 1000;
+
+    private final Gson gson = new Gson();
+    private final Path journal;
+    private final Path spool;
+    private final Path failed;
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private FileChannel channel;
+    //Lines that compaction drops: finished uploads and attempts
+    private int obsolete;
+
+    WriteBehindJournal(Path directory) throws IOException {
+        this.journal = directory.resolve("journal.jsonl");
+        this.spool = Files.createDirectories(directory.resolve("spool"));
+        this.failed = Files.createDirectories(directory.resolve("failed"));
+
+        if (Files.exists(journal)) {
+            try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry;
+                    try {
+                        entry = gson.fromJson(line, Entry.class);
+                    } catch (JsonSyntaxException e) {
+                        //Last line cut by a crash while it was written, its flowfile was not acknowledged
+                        continue;
+                    }
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (ADD.equals(entry.op)) {
+                        pending.put(entry.id, entry);
+                    } else if (ATTEMPT.equals(entry.op) && pending.containsKey(entry.id)) {
+                        pending.get(entry.id).attempts = entry.attempts;
+                    } else if (DONE.equals(entry.op)) {
+                        pending.remove(entry.id);
+                    }
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * @return The uploads accepted and not finished yet, oldest first
+     */
+    synchronized List<Entry> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @param filename Name of the file, only its last element is kept so it stays in the spool directory of the upload
+     * @return Where to copy the content of an upload before adding it
+     * @throws IOException The filename has no usable name, or the directory cannot be created
+     */
+    Path spoolFile(String id, String filename) throws IOException {
+        Path name = filename == null || filename.trim().isEmpty() ? null : Paths.get(filename).getFileName();
+        if (name == null || name.toString().equals(".") || name.toString().equals("..")) {
+            throw new IOException("Cannot spool a file named '" + filename + "'");
+        }
+        return Files.createDirectories(spool.resolve(id)).resolve(name.toString());
+    }
+
+    /**
+     * Record an upload whose content is already in its spool file. It is on disk when this returns.
+     */
+    synchronized void add(Entry entry) throws IOException {
+        entry.op = ADD;
+        append(entry);
+        pending.put(entry.id, entry);
+    }
+
+    /**
+     * Record a failed try of an upload. It is on disk when this returns.
+     *
+     * @return The number of tries made so far
+     */
+    synchronized int attempted(Entry entry) throws IOException {
+        Entry attempt = new Entry();
+        attempt.op = ATTEMPT;
+        attempt.id = entry.id;
+        attempt.attempts = entry.attempts + 1;
+        append(attempt);
+        entry.attempts = attempt.attempts;
+        compactIfObsolete();
+        return entry.attempts;
+    }
+
+    /**
+     * Record an upload as finished and delete its spool file
+     */
+    synchronized void done(Entry entry) throws IOException {
+        finish(entry);
+        FileUtils.deleteQuietly(spool.resolve(entry.id).toFile());
+    }
+
+    /**
+     * Record an upload as given up and move its spool file to the failed directory
+     */
+    synchronized void failed(Entry entry) throws IOException {
+        finish(entry);
+        Path source = spool.resolve(entry.id);
+        if (Files.exists(source)) {
+            Files.move(source, failed.resolve(entry.id), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void finish(Entry entry) throws IOException {
+        Entry done = new Entry();
+        done.op = DONE;
+        done.id = entry.id;
+        append(done);
+        pending.remove(entry.id);
+        compactIfObsolete();
+    }
+
+    private void compactIfObsolete() throws IOException {
+        if (++obsolete >= COMPACT_AFTER && obsolete > pending.size()) {
+            compact();
+        }
+    }
+
+    private void append(Entry entry) throws IOException {
+        if (channel == null) {
+            throw new IOException("The write-behind journal is closed");
+        }
+        channel.write(ByteBuffer.wrap((gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+    }
+
+    /**
+     * Rewrite the journal with only the pending uploads, replacing the old one atomically
+     */
+    private void compact() throws IOException {
+        close();
+        Path compacted = journal.resolveSibling("journal.jsonl.tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : pending.values()) {
+                out.write(ByteBuffer.wrap((gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            out.force(true);
+        }
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        obsolete = 0;
+    }
+
+    /**
+     * A journal line: an accepted upload with everything needed to send it to CKAN, a failed try or the end of one
+     */
+    static class Entry {
+        String op;
+        String id;
+        String file;
+        String organization;
+        String packageName;
+        String packageDescription;
+        boolean packagePrivate;
+        String tags;
+        String resourceName;
+        String resourceSuffix;
+        String resourceFormat;
+        //Failed tries so far
+        int attempts;
+    }
+}
@@ -0,0 +1,175 @@
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.sun.net.httpserver.HttpServer;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.LocalMetadataCache;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CKAN_Flowfile_UploaderTest {
+
+    private TestRunner runner;
+
+    @Before
+    public void init() {
+        runner = TestRunners.newTestRunner(CKAN_Flowfile_Uploader.class);
+        runner.setProperty("CKAN_url", "http://ckan.example.org");
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("organization_id", "qrowd");
+        runner.setProperty("resource_name", "traffic");
+    }
+
+    @Test
+    public void groupingAloneIsValid() {
+        runner.setProperty("group_by", "package");
+        runner.assertValid();
+    }
+
+    @Test
+    public void groupingRejectsWriteBehind() {
+        runner.setProperty("group_by", "package");
+        runner.setProperty("write_behind_directory", "/tmp/ckan-write-behind");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void groupingRejectsTheDedupJournal() {
+        runner.setProperty("group_by", "fragment");
+        runner.setProperty("dedup_journal", "/tmp/ckan-uploads.journal");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void groupingRejectsReplicas() {
+        runner.setProperty("group_by", "package");
+        runner.setProperty("replica_targets", "http://replica.example.org,key");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void replicasRejectWriteBehind() {
+        runner.setProperty("replica_targets", "http://replica.example.org,key");
+        runner.assertValid();
+        runner.setProperty("write_behind_directory", "/tmp/ckan-write-behind");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void gathersFragmentsThatArriveApart() {
+        //Nothing listens there, a group that is uploaded goes to failure as a whole
+        runner.setProperty("CKAN_url", "http://localhost:1/staggered");
+        runner.setProperty("group_by", "fragment");
+        runner.setProperty("group_max_wait", "10 min");
+
+        enqueueFragment("a", 0, 3);
+        enqueueFragment("a", 1, 3);
+        runner.run(1, false, true);
+        runner.assertTransferCount("failure", 0);
+        assertEquals(2, runner.getQueueSize().getObjectCount());
+        //Put back as they were, the next trigger sees them again with the last fragment
+        assertEquals(0, runner.getPenalizedFlowFiles().size());
+
+        enqueueFragment("a", 2, 3);
+        runner.run(1, false, false);
+        runner.assertTransferCount("failure", 3);
+        assertEquals(0, runner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void anIncompleteGroupDoesNotHoldBackACompleteOne() {
+        runner.setProperty("CKAN_url", "http://localhost:1/interleaved");
+        runner.setProperty("group_by", "fragment");
+        runner.setProperty("group_max_wait", "10 min");
+
+        enqueueFragment("a", 0, 2);
+        enqueueFragment("b", 0, 2);
+        enqueueFragment("b", 1, 2);
+        runner.run();
+
+        List<MockFlowFile> failed = runner.getFlowFilesForRelationship("failure");
+        assertEquals(2, failed.size());
+        for (MockFlowFile flowFile : failed) {
+            flowFile.assertAttributeEquals("fragment.identifier", "b");
+        }
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+    }
+
+    private void enqueueFragment(String identifier, int index, int count) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", identifier + index + ".csv");
+        attributes.put("ckan_package_name", "traffic");
+        attributes.put("fragment.identifier", identifier);
+        attributes.put("fragment.index", String.valueOf(index));
+        attributes.put("fragment.count", String.valueOf(count));
+        runner.enqueue("a,b\n1,2\n", attributes);
+    }
+
+    @Test
+    public void retriesOnlyTheTargetsThatMissTheFile() throws IOException {
+        //A CKAN that has the organization and package and counts the resources created in it
+        final AtomicInteger created = new AtomicInteger();
+        HttpServer ckan = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        ckan.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String body = "{\"success\":true,\"result\":{}}";
+            if (path.endsWith("/resource_search")) {
+                body = "{\"success\":true,\"result\":{\"count\":0,\"results\":[]}}";
+            } else if (path.endsWith("/package_show")) {
+                body = "{\"success\":true,\"result\":{\"id\":\"p1\",\"name\":\"traffic\",\"resources\":[]}}";
+            } else if (path.endsWith("/resource_create")) {
+                created.incrementAndGet();
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        ckan.start();
+        try {
+            String url = "http://localhost:" + ckan.getAddress().getPort();
+            String replica = "http://localhost:1/replica-retry";
+            LocalMetadataCache.forEndpoint(url, "key").put("ckan|" + url + "|organization|qrowd", "exists");
+            //The replica is down: its breaker is open
+            CircuitBreaker breaker = CircuitBreaker.forHost(replica);
+            breaker.configure(20, 0.5, 30000, 1);
+            for (int i = 0; i < 20; i++) {
+                breaker.onFailure();
+            }
+
+            runner.setProperty("CKAN_url", url);
+            runner.setProperty("replica_targets", replica + ",key");
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("filename", "replicated.csv");
+            attributes.put("ckan_package_name", "traffic");
+            runner.enqueue("a,b\n1,2\n", attributes);
+
+            runner.run(1, false, true);
+            assertEquals(1, created.get());
+            //Back in the queue, remembering that CKAN Url has it
+            assertEquals(1, runner.getQueueSize().getObjectCount());
+            runner.assertTransferCount("SUCCESS", 0);
+            runner.assertTransferCount("failure", 0);
+
+            runner.run(1, false, false);
+            assertEquals(1, created.get());
+            assertEquals(1, runner.getQueueSize().getObjectCount());
+        } finally {
+            ckan.stop(0);
+        }
+    }
+}
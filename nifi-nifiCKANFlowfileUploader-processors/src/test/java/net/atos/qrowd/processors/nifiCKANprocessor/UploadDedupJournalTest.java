@@ -0,0 +1,128 @@
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadDedupJournalTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keysDependOnUuidAndContent() throws IOException {
+        byte[] key = key("uuid-1", "a,b");
+        assertEquals(32, key.length);
+        assertArrayEquals(key, key("uuid-1", "a,b"));
+        assertFalse(Arrays.equals(key, key("uuid-2", "a,b")));
+        assertFalse(Arrays.equals(key, key("uuid-1", "a,c")));
+    }
+
+    @Test
+    public void everyTargetRemembersItsOwnUploads() throws IOException {
+        byte[] key = key("uuid-1", "a,b");
+        byte[] primary = UploadDedupJournal.key(key, "http://ckan.example.org");
+        byte[] replica = UploadDedupJournal.key(key, "http://replica.example.org");
+        try (UploadDedupJournal journal = new UploadDedupJournal(folder.getRoot().toPath().resolve("uploads.journal"), DAY)) {
+            journal.record(primary);
+            assertTrue(journal.contains(primary));
+            assertFalse(journal.contains(replica));
+            assertFalse(journal.contains(key));
+        }
+    }
+
+    @Test
+    public void uploadsSurviveAReopen() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("dedup").resolve("uploads.journal");
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, DAY)) {
+            journal.record(key("uuid-1", "a,b"));
+            assertTrue(journal.contains(key("uuid-1", "a,b")));
+            assertFalse(journal.contains(key("uuid-2", "a,b")));
+        }
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, DAY)) {
+            assertTrue(journal.contains(key("uuid-1", "a,b")));
+            assertFalse(journal.contains(key("uuid-2", "a,b")));
+        }
+    }
+
+    @Test
+    public void forgetsUploadsOlderThanTheTtl() throws IOException, InterruptedException {
+        Path file = folder.getRoot().toPath().resolve("uploads.journal");
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, 100)) {
+            journal.record(key("uuid-1", "a,b"));
+            assertTrue(journal.contains(key("uuid-1", "a,b")));
+            Thread.sleep(200);
+            assertFalse(journal.contains(key("uuid-1", "a,b")));
+        }
+        //Dropped when reopened, not only hidden: a longer ttl does not bring it back
+        new UploadDedupJournal(file, 100).close();
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, DAY)) {
+            assertFalse(journal.contains(key("uuid-1", "a,b")));
+        }
+    }
+
+    @Test
+    public void growsWhenFullAndKeepsEveryUpload() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("uploads.journal");
+        long initialSize;
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, DAY)) {
+            initialSize = Files.size(file);
+            for (int i = 0; i < 5000; i++) {
+                journal.record(key("uuid-" + i, "a,b"));
+            }
+        }
+        assertTrue(Files.size(file) > initialSize);
+        assertFalse(Files.exists(file.resolveSibling("uploads.journal.tmp")));
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, DAY)) {
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(journal.contains(key("uuid-" + i, "a,b")));
+            }
+        }
+    }
+
+    @Test
+    public void compactionMakesRoomForNewUploads() throws IOException, InterruptedException {
+        Path file = folder.getRoot().toPath().resolve("uploads.journal");
+        long size;
+        try (UploadDedupJournal journal = new UploadDedupJournal(file, 500)) {
+            size = Files.size(file);
+            for (int i = 0; i < 4000; i++) {
+                journal.record(key("old-" + i, "a,b"));
+            }
+            Thread.sleep(600);
+            //Filling the file again drops the expired uploads instead of growing it
+            for (int i = 0; i < 200; i++) {
+                journal.record(key("new-" + i, "a,b"));
+            }
+            assertTrue(journal.contains(key("new-0", "a,b")));
+            assertFalse(journal.contains(key("old-0", "a,b")));
+        }
+        assertEquals(size, Files.size(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotAJournal() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("uploads.journal");
+        Files.write(file, "this is not an upload journal at all".getBytes(StandardCharsets.UTF_8));
+        new UploadDedupJournal(file, DAY).close();
+    }
+
+    private static byte[] key(String uuid, String content) throws IOException {
+        return UploadDedupJournal.key(uuid, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
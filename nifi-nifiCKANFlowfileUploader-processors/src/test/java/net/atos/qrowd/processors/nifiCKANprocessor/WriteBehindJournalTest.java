@@ -0,0 +1,145 @@
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pendingUploadsSurviveAReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            journal.add(entry(journal, "1"));
+            journal.add(entry(journal, "2"));
+            journal.done(journal.pending().get(0));
+        }
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            List<WriteBehindJournal.Entry> pending = journal.pending();
+            assertEquals(1, pending.size());
+            assertEquals("2", pending.get(0).id);
+            assertEquals("traffic", pending.get(0).packageName);
+        }
+    }
+
+    @Test
+    public void doneDeletesAndFailedMovesTheSpoolFile() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            WriteBehindJournal.Entry done = entry(journal, "1");
+            WriteBehindJournal.Entry failed = entry(journal, "2");
+            journal.add(done);
+            journal.add(failed);
+            journal.done(done);
+            journal.failed(failed);
+            assertEquals(0, journal.size());
+        }
+        assertFalse(Files.exists(directory.resolve("spool").resolve("1")));
+        assertFalse(Files.exists(directory.resolve("spool").resolve("2")));
+        assertTrue(Files.exists(directory.resolve("failed").resolve("2").resolve("data.csv")));
+    }
+
+    @Test
+    public void attemptsSurviveAReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            WriteBehindJournal.Entry entry = entry(journal, "1");
+            journal.add(entry);
+            assertEquals(1, journal.attempted(entry));
+            assertEquals(2, journal.attempted(entry));
+        }
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            WriteBehindJournal.Entry entry = journal.pending().get(0);
+            assertEquals(2, entry.attempts);
+            assertEquals(3, journal.attempted(entry));
+        }
+        //Compacted on open, the count is kept in the add line
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            assertEquals(3, journal.pending().get(0).attempts);
+        }
+    }
+
+    @Test
+    public void compactsToThePendingUploads() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            journal.add(entry(journal, "kept"));
+            for (int i = 0; i < 1500; i++) {
+                WriteBehindJournal.Entry entry = entry(journal, "e" + i);
+                journal.add(entry);
+                journal.done(entry);
+            }
+            assertTrue(lines(directory) < 1500);
+        }
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            assertEquals(1, journal.size());
+            assertEquals("kept", journal.pending().get(0).id);
+        }
+        assertEquals(1, lines(directory));
+        assertFalse(Files.exists(directory.resolve("journal.jsonl.tmp")));
+    }
+
+    @Test
+    public void ignoresALineCutByACrash() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            journal.add(entry(journal, "1"));
+        }
+        Files.write(directory.resolve("journal.jsonl"), "{\"op\":\"add\",\"id\":\"2\",\"fi".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            assertEquals(1, journal.size());
+            assertEquals("1", journal.pending().get(0).id);
+        }
+    }
+
+    @Test
+    public void spoolFilesStayInTheirDirectory() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteBehindJournal journal = new WriteBehindJournal(directory)) {
+            Path spool = directory.resolve("spool").resolve("1");
+            assertEquals(spool.resolve("x.csv"), journal.spoolFile("1", "../../x.csv"));
+            assertEquals(spool.resolve("passwd"), journal.spoolFile("1", "/etc/passwd"));
+            assertEquals(spool.resolve("data.csv"), journal.spoolFile("1", "data.csv"));
+            for (String name : new String[]{"", " ", ".", "..", "a/..", null}) {
+                try {
+                    journal.spoolFile("1", name);
+                    fail("Spooled a file named '" + name + "'");
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+
+    private static WriteBehindJournal.Entry entry(WriteBehindJournal journal, String id) throws IOException {
+        Path file = journal.spoolFile(id, "data.csv");
+        Files.write(file, "a,b\n1,2\n".getBytes(StandardCharsets.UTF_8));
+        WriteBehindJournal.Entry entry = new WriteBehindJournal.Entry();
+        entry.id = id;
+        entry.file = file.toString();
+        entry.organization = "qrowd";
+        entry.packageName = "traffic";
+        entry.resourceName = "data";
+        entry.resourceFormat = "csv";
+        return entry;
+    }
+
+    private static int lines(Path directory) throws IOException {
+        return Files.readAllLines(directory.resolve("journal.jsonl"), StandardCharsets.UTF_8).size();
+    }
+}
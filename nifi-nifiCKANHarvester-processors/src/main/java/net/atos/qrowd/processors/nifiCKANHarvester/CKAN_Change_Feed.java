@@ -0,0 +1,299 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANHarvester;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.pojos.Activity;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@Stateful(scopes = Scope.CLUSTER, description = "The timestamp of the newest activity emitted, and the ids of the activities with that "
+        + "timestamp, so that the next run only emits newer activities.")
+@Tags({"ckan", "activity", "change", "feed", "incremental", "cdc", "web service", "request"})
+@CapabilityDescription("Nifi Processor that follows the recently changed packages activity stream of a CKAN instance and emits one flowfile "
+        + "per package change, oldest first, with the package as content when CKAN includes it in the activity. "
+        + "The position in the stream is kept in the processor state.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.package.id", description = "Id of the changed package"),
+        @WritesAttribute(attribute = "ckan.package.name", description = "Name of the changed package, when CKAN includes it in the activity"),
+        @WritesAttribute(attribute = "ckan.change.type", description = "new, changed or deleted"),
+        @WritesAttribute(attribute = "ckan.metadata_modified", description = "metadata_modified of the package after the change, when CKAN includes it"),
+        @WritesAttribute(attribute = "ckan.activity.id", description = "Id of the activity"),
+        @WritesAttribute(attribute = "ckan.activity.timestamp", description = "When the change happened"),
+        @WritesAttribute(attribute = "mime.type", description = "application/json")})
+public class CKAN_Change_Feed extends AbstractProcessor {
+
+    static final String CURSOR_TIMESTAMP = "cursor.timestamp";
+    static final String CURSOR_IDS = "cursor.ids";
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to read from")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor page_size = new PropertyDescriptor
+            .Builder().name("page_size")
+            .displayName("Page size")
+            .description("Number of activities requested in each call. CKAN caps it with its ckan.activity_list_limit setting")
+            .addValidator(StandardValidators.createLongValidator(1, 1000, true))
+            .defaultValue("100")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor initial_backlog = new PropertyDescriptor
+            .Builder().name("initial_backlog")
+            .displayName("Initial backlog")
+            .description("Number of past activities emitted on the first run, or after the state is cleared. With 0 only the changes "
+                    + "made after the first run are emitted")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_activities = new PropertyDescriptor
+            .Builder().name("max_activities")
+            .displayName("Maximum activities per run")
+            .description("Maximum number of activities read in one run while looking for the last one emitted. If it is reached "
+                    + "the newest activities are emitted and the older ones are skipped, with a warning")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("One flowfile per package change")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(page_size);
+        descriptors.add(initial_backlog);
+        descriptors.add(max_activities);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        final String apiKey = context.getProperty(api_key).getValue();
+        final int limit = context.getProperty(page_size).asInteger();
+        final int backlog = context.getProperty(initial_backlog).asInteger();
+        final int maxActivities = context.getProperty(max_activities).asInteger();
+
+        //  *******************
+        //   Main logic of the CKAN change feed
+        // - Read the cursor (timestamp of the newest activity emitted and the ids at that timestamp) from the state
+        // - Page through the activity stream, newest first, until reaching the cursor
+        // - Emit the new activities oldest first, commit the session and only then move the cursor in the state
+        // *********************
+
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(AdaptiveConcurrencyLimit.forHost(url));
+        try {
+            final StateMap state = context.getStateManager().getState(Scope.CLUSTER);
+            final String cursor = state.get(CURSOR_TIMESTAMP);
+            final Set<String> idsAtCursor = state.get(CURSOR_IDS) == null
+                    ? new HashSet<>() : new HashSet<>(Arrays.asList(state.get(CURSOR_IDS).split(",")));
+            final int wanted = cursor == null ? backlog : maxActivities;
+
+            //Activities arrive newest first, and new ones can shift the offsets while paging, hence the map by id
+            Map<String, Activity> newer = new LinkedHashMap<>();
+            Activity newest = null;
+            boolean reachedCursor = false;
+            int offset = 0;
+            //The first page is always read, on the first run it only gives the starting point when there is no backlog
+            do {
+                List<Activity> page = ckan_api_handler.recentlyChangedPackages(offset, limit);
+                if (page.isEmpty()) {
+                    break;
+                }
+                offset += page.size();
+                for (Activity activity : page) {
+                    if (newest == null) {
+                        newest = activity;
+                    }
+                    if (isBeforeCursor(activity, cursor, idsAtCursor)) {
+                        reachedCursor = true;
+                        break;
+                    }
+                    if (newer.size() < wanted) {
+                        newer.putIfAbsent(activity.getId(), activity);
+                    }
+                }
+            } while (!reachedCursor && newer.size() < wanted);
+            if (newest == null || (cursor != null && newer.isEmpty())) {
+                context.yield();
+                return;
+            }
+            if (cursor != null && !reachedCursor && newer.size() >= wanted) {
+                getLogger().warn("More than {} activities since the last run in {}, the older ones were skipped", new Object[]{wanted, url});
+            }
+
+            List<Activity> changes = new ArrayList<>(newer.values());
+            Collections.reverse(changes);
+            for (Activity activity : changes) {
+                emit(session, activity);
+            }
+            session.commit();
+
+            context.getStateManager().setState(nextCursor(newest, changes, cursor, idsAtCursor), Scope.CLUSTER);
+            if (!changes.isEmpty()) {
+                getLogger().info("Emitted {} package changes from {}", new Object[]{changes.size(), url});
+            }
+        } catch (IOException ioe) {
+            getLogger().error("Error while reading the activity stream of CKAN {}: {}", new Object[]{url, ioe.toString()});
+            context.yield();
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    private void emit(final ProcessSession session, final Activity activity) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("ckan.package.id", activity.getObjectId());
+        attributes.put("ckan.change.type", changeType(activity.getActivityType()));
+        attributes.put("ckan.activity.id", activity.getId());
+        attributes.put("ckan.activity.timestamp", activity.getTimestamp());
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+
+        JsonObject dataset = null;
+        if (activity.getData() != null && activity.getData().has("package") && activity.getData().get("package").isJsonObject()) {
+            dataset = activity.getData().getAsJsonObject("package");
+            putIfPresent(attributes, "ckan.package.name", dataset.get("name"));
+            putIfPresent(attributes, "ckan.metadata_modified", dataset.get("metadata_modified"));
+        }
+        if (attributes.containsKey("ckan.package.name")) {
+            attributes.put(CoreAttributes.FILENAME.key(), attributes.get("ckan.package.name") + ".json");
+        }
+
+        final byte[] content = dataset == null ? new byte[0] : dataset.toString().getBytes(StandardCharsets.UTF_8);
+        FlowFile flowFile = session.create();
+        flowFile = session.write(flowFile, out -> out.write(content));
+        session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+    }
+
+    private static void putIfPresent(Map<String, String> attributes, String name, JsonElement value) {
+        if (value != null && value.isJsonPrimitive()) {
+            attributes.put(name, value.getAsString());
+        }
+    }
+
+    /**
+     * CKAN activity types are "new package", "changed package" and "deleted package"
+     */
+    static String changeType(String activityType) {
+        if (activityType == null) {
+            return "changed";
+        }
+        return activityType.replace(" package", "").trim();
+    }
+
+    /**
+     * CKAN timestamps are ISO local date-times in UTC with the same precision, so they compare as strings
+     */
+    static boolean isBeforeCursor(Activity activity, String cursor, Set<String> idsAtCursor) {
+        if (cursor == null) {
+            return false;
+        }
+        int comparison = activity.getTimestamp().compareTo(cursor);
+        return comparison < 0 || (comparison == 0 && idsAtCursor.contains(activity.getId()));
+    }
+
+    /**
+     * The new cursor is the timestamp of the newest activity, with the ids of every activity emitted or already
+     * seen at that timestamp, so that activities sharing it are not emitted twice
+     */
+    static Map<String, String> nextCursor(Activity newest, List<Activity> emitted, String cursor, Set<String> idsAtCursor) {
+        Set<String> ids = new TreeSet<>();
+        if (newest.getTimestamp().equals(cursor)) {
+            ids.addAll(idsAtCursor);
+        }
+        for (Activity activity : emitted) {
+            if (activity.getTimestamp().equals(newest.getTimestamp())) {
+                ids.add(activity.getId());
+            }
+        }
+        ids.add(newest.getId());
+
+        Map<String, String> state = new HashMap<>();
+        state.put(CURSOR_TIMESTAMP, newest.getTimestamp());
+        state.put(CURSOR_IDS, String.join(",", ids));
+        return state;
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANHarvester;
+
+import com.google.gson.Gson;
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.pojos.Package;
+import net.atos.qrowd.pojos.Package_;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@Stateful(scopes = Scope.CLUSTER, description = "The metadata_modified of the last package listed, and how many packages with that same "
+        + "metadata_modified were already listed, so that the next run only lists new or changed packages.")
+@Tags({"ckan", "list", "harvest", "package_search", "incremental", "web service", "request"})
+@CapabilityDescription("Nifi Processor that lists the packages of a CKAN catalogue with package_search, page by page, sorted by metadata_modified. "
+        + "Each page is emitted as soon as it is read, one flowfile per package or per page, and the position in the catalogue is "
+        + "kept in the processor state so later runs only fetch packages created or modified since then. "
+        + "In full harvest mode the whole catalogue is listed on every run, fetching the pages in parallel.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.package.name", description = "Name of the package (one flowfile per package)"),
+        @WritesAttribute(attribute = "ckan.package.id", description = "Id of the package (one flowfile per package)"),
+        @WritesAttribute(attribute = "ckan.metadata_modified", description = "metadata_modified of the package, or of the last package of the page"),
+        @WritesAttribute(attribute = "ckan.package.count", description = "Number of packages in the flowfile"),
+        @WritesAttribute(attribute = "mime.type", description = "application/json")})
+public class CKAN_Package_Lister extends AbstractProcessor {
+
+    static final String CURSOR_MODIFIED = "cursor.metadata_modified";
+    static final String CURSOR_COUNT = "cursor.count";
+
+    private static final String SORT = "metadata_modified asc, name asc";
+    private static final DateTimeFormatter SOLR_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    private static final AllowableValue OUTPUT_PACKAGE = new AllowableValue("package", "One flowfile per package", "Emit every package as a JSON object in its own flowfile");
+    private static final AllowableValue OUTPUT_PAGE = new AllowableValue("page", "One flowfile per page", "Emit every page of packages as a JSON array");
+
+    private static final AllowableValue MODE_INCREMENTAL = new AllowableValue("incremental", "Incremental",
+            "List the packages created or modified since the previous run, one page after the other");
+    private static final AllowableValue MODE_FULL = new AllowableValue("full", "Full harvest",
+            "List the whole catalogue on every run, fetching the pages in parallel once the first page gives the total count. The state is not used");
+
+    private static final AllowableValue ORDER_ORDERED = new AllowableValue("ordered", "Ordered", "Emit the pages in catalogue order");
+    private static final AllowableValue ORDER_UNORDERED = new AllowableValue("unordered", "Unordered", "Emit every page as soon as it arrives");
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to read from")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor query = new PropertyDescriptor
+            .Builder().name("query")
+            .displayName("Search query")
+            .description("Solr query (q) selecting the packages to list")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("*:*")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor filter_query = new PropertyDescriptor
+            .Builder().name("filter_query")
+            .displayName("Filter query")
+            .description("Optional Solr filter query (fq), e.g. organization:my-org")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor page_size = new PropertyDescriptor
+            .Builder().name("page_size")
+            .displayName("Page size")
+            .description("Number of packages requested in each package_search call (rows)")
+            .addValidator(StandardValidators.createLongValidator(1, 1000, true))
+            .defaultValue("100")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_pages = new PropertyDescriptor
+            .Builder().name("max_pages")
+            .displayName("Maximum pages per run")
+            .description("Maximum number of pages fetched in one run, 0 to page until the end of the catalogue. The next run continues where this one stopped.")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor output_mode = new PropertyDescriptor
+            .Builder().name("output_mode")
+            .displayName("Output")
+            .description("Whether to emit a flowfile per package or per page")
+            .allowableValues(OUTPUT_PACKAGE, OUTPUT_PAGE)
+            .defaultValue(OUTPUT_PACKAGE.getValue())
+            .required(true)
+            .build();
+
+    private static final PropertyDescriptor harvest_mode = new PropertyDescriptor
+            .Builder().name("harvest_mode")
+            .displayName("Harvest mode")
+            .description("Whether to list only what changed since the previous run, or the whole catalogue")
+            .allowableValues(MODE_INCREMENTAL, MODE_FULL)
+            .defaultValue(MODE_INCREMENTAL.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor parallel_pages = new PropertyDescriptor
+            .Builder().name("parallel_pages")
+            .displayName("Pages in parallel")
+            .description("Full harvest only: maximum number of pages fetched at the same time. "
+                    + "The adaptive concurrency limit of the CKAN instance can lower it further.")
+            .addValidator(StandardValidators.createLongValidator(1, 64, true))
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor emit_order = new PropertyDescriptor
+            .Builder().name("emit_order")
+            .displayName("Emit order")
+            .description("Full harvest only: emit the pages in catalogue order, or as soon as each one arrives")
+            .allowableValues(ORDER_ORDERED, ORDER_UNORDERED)
+            .defaultValue(ORDER_ORDERED.getValue())
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("The listed packages")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService pageExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(query);
+        descriptors.add(filter_query);
+        descriptors.add(page_size);
+        descriptors.add(max_pages);
+        descriptors.add(output_mode);
+        descriptors.add(harvest_mode);
+        descriptors.add(parallel_pages);
+        descriptors.add(emit_order);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        if (MODE_FULL.getValue().equals(context.getProperty(harvest_mode).getValue())) {
+            pageExecutor = Executors.newFixedThreadPool(context.getProperty(parallel_pages).asInteger(), runnable -> {
+                Thread thread = new Thread(runnable, "CKAN-package-page");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (pageExecutor != null) {
+            pageExecutor.shutdownNow();
+            pageExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        final String apiKey = context.getProperty(api_key).getValue();
+        final String q = context.getProperty(query).getValue();
+        final String fq = context.getProperty(filter_query).getValue();
+        final int rows = context.getProperty(page_size).asInteger();
+        final int maxPages = context.getProperty(max_pages).asInteger();
+        final boolean perPage = OUTPUT_PAGE.getValue().equals(context.getProperty(output_mode).getValue());
+
+        //  *******************
+        //   Main logic of the CKAN package lister
+        // - Read the cursor (metadata_modified of the last package listed and how many packages share it) from the state
+        // - Ask package_search for the packages modified since the cursor, oldest first, skipping those already listed
+        // - Emit the page, commit the session and only then move the cursor forward in the state
+        // - Repeat until a page comes back incomplete, or the page limit is reached
+        // *********************
+
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(AdaptiveConcurrencyLimit.forHost(url));
+        try {
+            final int listed;
+            if (MODE_FULL.getValue().equals(context.getProperty(harvest_mode).getValue())) {
+                final boolean ordered = ORDER_ORDERED.getValue().equals(context.getProperty(emit_order).getValue());
+                listed = listFull(session, ckan_api_handler, AdaptiveConcurrencyLimit.forHost(url), context.getProperty(parallel_pages).asInteger(),
+                        q, fq, rows, maxPages, perPage, ordered);
+            } else {
+                listed = listIncremental(context, session, ckan_api_handler, q, fq, rows, maxPages, perPage);
+            }
+            if (listed == 0) {
+                context.yield();
+            } else {
+                getLogger().info("Listed {} packages from {}", new Object[]{listed, url});
+            }
+        } catch (IOException ioe) {
+            getLogger().error("Error while listing the packages of CKAN {}: {}", new Object[]{url, ioe.toString()});
+            context.yield();
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    /**
+     * List the packages modified since the cursor kept in the state, one page after the other, moving the cursor
+     * forward once every page is committed
+     *
+     * @return Number of packages listed
+     */
+    private int listIncremental(final ProcessContext context, final ProcessSession session, final CKAN_API_Handler ckan_api_handler,
+                                final String q, final String fq, final int rows, final int maxPages, final boolean perPage) throws IOException {
+        final StateMap state = context.getStateManager().getState(Scope.CLUSTER);
+        String cursor = state.get(CURSOR_MODIFIED);
+        int countAtCursor = state.get(CURSOR_COUNT) == null ? 0 : Integer.parseInt(state.get(CURSOR_COUNT));
+
+        int pages = 0;
+        int listed = 0;
+        while (isScheduled() && (maxPages == 0 || pages < maxPages)) {
+            Package page = ckan_api_handler.searchPackages(q, cursorFilter(cursor, fq), SORT, rows, countAtCursor);
+            List<Package_> packages = page.getPackages();
+            if (packages == null || packages.isEmpty()) {
+                break;
+            }
+
+            for (Package_ dataset : packages) {
+                String modified = toCursor(dataset.getMetadataModified());
+                if (modified.equals(cursor)) {
+                    countAtCursor++;
+                } else {
+                    cursor = modified;
+                    countAtCursor = 1;
+                }
+            }
+            emit(session, packages, perPage);
+            session.commit();
+
+            Map<String, String> newState = new HashMap<>();
+            newState.put(CURSOR_MODIFIED, cursor);
+            newState.put(CURSOR_COUNT, String.valueOf(countAtCursor));
+            context.getStateManager().setState(newState, Scope.CLUSTER);
+
+            pages++;
+            listed += packages.size();
+            if (packages.size() < rows) {
+                break;
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * List the whole catalogue: the first page gives the number of packages, then the remaining offsets are
+     * fetched from the page executor, with at most <code>parallel</code> pages in flight and only while the
+     * concurrency limit of the CKAN instance gives permits. Pages are emitted and committed from the calling
+     * thread, since the session cannot be shared.
+     *
+     * @return Number of packages listed
+     */
+    private int listFull(final ProcessSession session, final CKAN_API_Handler ckan_api_handler, final AdaptiveConcurrencyLimit concurrencyLimit,
+                         final int parallel, final String q, final String fq, final int rows, final int maxPages,
+                         final boolean perPage, final boolean ordered) throws IOException {
+        Package first = ckan_api_handler.searchPackages(q, fq, SORT, rows, 0);
+        if (first.getPackages() == null || first.getPackages().isEmpty()) {
+            return 0;
+        }
+        emit(session, first.getPackages(), perPage);
+        session.commit();
+        int listed = first.getPackages().size();
+
+        int pages = (first.getCount() + rows - 1) / rows;
+        if (maxPages > 0) {
+            pages = Math.min(pages, maxPages);
+        }
+
+        final CompletionService<PageResult> completion = new ExecutorCompletionService<>(pageExecutor);
+        final List<Future<PageResult>> submitted = new ArrayList<>();
+        final Map<Integer, List<Package_>> pending = new TreeMap<>();
+        int next = 1;
+        int received = 1;
+        int nextToEmit = 1;
+        int inFlight = 0;
+        try {
+            while (received < pages && isScheduled()) {
+                while (next < pages && inFlight < parallel && concurrencyLimit.tryAcquire()) {
+                    final int index = next++;
+                    submitted.add(completion.submit(() -> {
+                        try {
+                            return new PageResult(index, ckan_api_handler.searchPackages(q, fq, SORT, rows, index * rows).getPackages());
+                        } finally {
+                            concurrencyLimit.release();
+                        }
+                    }));
+                    inFlight++;
+                }
+
+                //Also wakes up regularly when no permit could be taken, to try again
+                Future<PageResult> done = completion.poll(10, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                inFlight--;
+                received++;
+                PageResult result = done.get();
+                pending.put(result.index, result.packages == null ? Collections.emptyList() : result.packages);
+                //Unordered: emit whatever arrived, ordered: emit the pages following the last one emitted
+                Iterator<Map.Entry<Integer, List<Package_>>> ready = pending.entrySet().iterator();
+                while (ready.hasNext()) {
+                    Map.Entry<Integer, List<Package_>> page = ready.next();
+                    if (ordered && page.getKey() != nextToEmit) {
+                        break;
+                    }
+                    ready.remove();
+                    nextToEmit++;
+                    if (!page.getValue().isEmpty()) {
+                        emit(session, page.getValue(), perPage);
+                        session.commit();
+                        listed += page.getValue().size();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching the pages of the catalogue", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ProcessException(e.getCause());
+        } finally {
+            for (Future<PageResult> future : submitted) {
+                future.cancel(true);
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * Emit the packages of a page, as one flowfile per package or one flowfile for the whole page
+     */
+    static void emit(final ProcessSession session, final List<Package_> packages, final boolean perPage) {
+        final Gson gson = new Gson();
+        if (perPage) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.package.count", String.valueOf(packages.size()));
+            attributes.put("ckan.metadata_modified", packages.get(packages.size() - 1).getMetadataModified());
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            FlowFile flowFile = session.create();
+            flowFile = session.write(flowFile, out -> out.write(gson.toJson(packages).getBytes(StandardCharsets.UTF_8)));
+            session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+        } else {
+            for (Package_ dataset : packages) {
+                Map<String, String> attributes = new HashMap<>();
+                attributes.put("ckan.package.name", dataset.getName());
+                attributes.put("ckan.package.id", dataset.getId());
+                attributes.put("ckan.metadata_modified", dataset.getMetadataModified());
+                attributes.put("ckan.package.count", "1");
+                attributes.put(CoreAttributes.FILENAME.key(), dataset.getName() + ".json");
+                attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+                FlowFile flowFile = session.create();
+                flowFile = session.write(flowFile, out -> out.write(gson.toJson(dataset).getBytes(StandardCharsets.UTF_8)));
+                session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+            }
+        }
+    }
+
+    private static class PageResult {
+        private final int index;
+        private final List<Package_> packages;
+
+        PageResult(int index, List<Package_> packages) {
+            this.index = index;
+            this.packages = packages;
+        }
+    }
+
+    /**
+     * Build the filter query selecting the packages modified at or after the cursor
+     */
+    static String cursorFilter(String cursor, String filterQuery) {
+        if (cursor == null) {
+            return filterQuery;
+        }
+        String range = "metadata_modified:[" + cursor + " TO *]";
+        return filterQuery == null ? range : range + " AND (" + filterQuery + ")";
+    }
+
+    /**
+     * CKAN returns metadata_modified in UTC with microseconds and no zone, while Solr indexes it with millisecond
+     * precision. Cursors are kept in the Solr format so that they compare the same way Solr sorts.
+     */
+    static String toCursor(String metadataModified) {
+        return LocalDateTime.parse(metadataModified).format(SOLR_DATE);
+    }
+}
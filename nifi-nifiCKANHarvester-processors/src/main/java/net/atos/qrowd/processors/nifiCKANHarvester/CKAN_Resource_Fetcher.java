@@ -0,0 +1,397 @@
+/**
+ * Copyright 2018 Atos
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANHarvester;
+
+import net.atos.qrowd.handlers.AdaptiveConcurrencyLimit;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CircuitBreaker;
+import net.atos.qrowd.handlers.CircuitBreakerOpenException;
+import net.atos.qrowd.handlers.RateLimiter;
+import net.atos.qrowd.handlers.RemoteFile;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"ckan", "fetch", "resource", "download", "range", "web service", "request"})
+@CapabilityDescription("Nifi Processor that downloads the file of a CKAN resource into the content of the flowfile. The resource id is "
+        + "resolved to its url with resource_show and, when the server accepts byte ranges, the file is downloaded in several ranges "
+        + "at the same time. The content is checked against the size and hash of the resource when CKAN has them.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.url", description = "Url the file was downloaded from"),
+        @WritesAttribute(attribute = "ckan.resource.size", description = "Number of bytes downloaded"),
+        @WritesAttribute(attribute = "ckan.resource.verified", description = "true if the content matched the size and/or hash of the resource, "
+                + "false if CKAN had neither"),
+        @WritesAttribute(attribute = "ckan.fetch.error", description = "Why the download failed, on failure"),
+        @WritesAttribute(attribute = "filename", description = "Name of the resource"),
+        @WritesAttribute(attribute = "mime.type", description = "Mimetype of the resource, when CKAN has it")})
+public class CKAN_Resource_Fetcher extends AbstractProcessor {
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to read from")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN. It is only sent to the CKAN instance, not to other servers holding resource files")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor resource_id = new PropertyDescriptor
+            .Builder().name("resource_id")
+            .displayName("Resource id")
+            .description("Id of the resource to download")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .defaultValue("${ckan.resource.id}")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor parallel_ranges = new PropertyDescriptor
+            .Builder().name("parallel_ranges")
+            .displayName("Ranges in parallel")
+            .description("Number of byte ranges of one file downloaded at the same time, 1 downloads the file in a single request")
+            .addValidator(StandardValidators.createLongValidator(1, 32, true))
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor range_size = new PropertyDescriptor
+            .Builder().name("range_size")
+            .displayName("Range size")
+            .description("Size of each byte range. Up to 'Ranges in parallel' ranges are held in memory while they wait to be written in order, "
+                    + "files smaller than this are downloaded in a single request")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(64 * 1024, 256 * 1024 * 1024))
+            .defaultValue("8 MB")
+            .required(true)
+            .build();
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("The flowfile with the content of the resource")
+            .build();
+    private static final Relationship REL_NO_RESOURCE = new Relationship.Builder()
+            .name("NO_RESOURCE_FOUND")
+            .description("No resource was found with that id")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Any flowfile whose resource could not be downloaded, or did not match its size or hash")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService rangeExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(resource_id);
+        descriptors.add(parallel_ranges);
+        descriptors.add(range_size);
+
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_NO_RESOURCE);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        rangeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN-resource-range");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (rangeExecutor != null) {
+            rangeExecutor.shutdownNow();
+            rangeExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final String url = context.getProperty(CKAN_url).getValue();
+        final CircuitBreaker circuitBreaker = CircuitBreaker.forHost(url);
+        if (circuitBreaker.isRejecting()) {
+            context.yield();
+            return;
+        }
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final String apiKey = context.getProperty(api_key).getValue();
+        final String id = context.getProperty(resource_id).evaluateAttributeExpressions(flowFile).getValue();
+        final int parallel = context.getProperty(parallel_ranges).asInteger();
+        final long rangeSize = context.getProperty(range_size).asDataSize(DataUnit.B).longValue();
+
+        //  *******************
+        //   Main logic of the CKAN resource fetcher
+        // - Resolve the resource id to its url with resource_show
+        // - Ask the server holding the file for its length and whether it accepts ranges
+        // - Download the ranges in parallel, writing them in order into the flowfile, or the whole file at once
+        // - Check the content against the size and hash of the resource
+        // *********************
+
+        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
+        ckan_api_handler.setCircuitBreaker(circuitBreaker);
+        ckan_api_handler.setRateLimiter(RateLimiter.forEndpoint(url, apiKey));
+        ckan_api_handler.setConcurrencyLimit(AdaptiveConcurrencyLimit.forHost(url));
+        try {
+            Resource resource = ckan_api_handler.showResource(id);
+            if (resource == null || resource.getUrl() == null || resource.getUrl().isEmpty()) {
+                getLogger().warn("No resource with id {} or it has no url", new Object[]{id});
+                session.transfer(flowFile, REL_NO_RESOURCE);
+                return;
+            }
+            final String fileUrl = resource.getUrl();
+            final RemoteFile remoteFile = headOrUnknown(ckan_api_handler, fileUrl);
+            final MessageDigest digest = digestFor(resource.getHash());
+            final AtomicLong written = new AtomicLong();
+
+            flowFile = session.write(flowFile, out -> {
+                OutputStream target = digest == null ? out : new DigestOutputStream(out, digest);
+                if (parallel == 1 || !remoteFile.acceptsRanges() || remoteFile.getLength() <= rangeSize) {
+                    written.set(ckan_api_handler.downloadResource(fileUrl, -1, -1, target));
+                } else {
+                    written.set(downloadRanges(ckan_api_handler, remoteFile, parallel, rangeSize, target));
+                }
+            });
+
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.resource.id", id);
+            attributes.put("ckan.resource.url", fileUrl);
+            attributes.put("ckan.resource.size", String.valueOf(written.get()));
+            if (resource.getName() != null && !resource.getName().isEmpty()) {
+                attributes.put(CoreAttributes.FILENAME.key(), resource.getName());
+            }
+            if (resource.getMimetype() != null) {
+                attributes.put(CoreAttributes.MIME_TYPE.key(), resource.getMimetype().toString());
+            }
+
+            long expectedSize = sizeOf(resource.getSize());
+            String error = null;
+            if (expectedSize > 0 && expectedSize != written.get()) {
+                error = "Downloaded " + written.get() + " bytes but the resource size is " + expectedSize;
+            } else if (digest != null && !hex(digest.digest()).equalsIgnoreCase(hexOf(resource.getHash()))) {
+                error = "The " + digest.getAlgorithm() + " of the content does not match the hash of the resource " + resource.getHash();
+            }
+            if (error != null) {
+                getLogger().error("Resource {}: {}", new Object[]{id, error});
+                attributes.put("ckan.fetch.error", error);
+                session.transfer(session.penalize(session.putAllAttributes(flowFile, attributes)), REL_FAILURE);
+                return;
+            }
+            attributes.put("ckan.resource.verified", String.valueOf(expectedSize > 0 || digest != null));
+            session.getProvenanceReporter().fetch(flowFile, fileUrl);
+            session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+        } catch (CircuitBreakerOpenException cboe) {
+            unavailable(context, session, url, cboe);
+        } catch (IOException | ProcessException e) {
+            //Exceptions thrown while downloading come wrapped by session.write
+            if (e.getCause() instanceof CircuitBreakerOpenException) {
+                unavailable(context, session, url, e.getCause());
+                return;
+            }
+            getLogger().error("Error while downloading resource {}: {}", new Object[]{id, e.toString()});
+            flowFile = session.putAttribute(flowFile, "ckan.fetch.error", e.toString());
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        } finally {
+            ckan_api_handler.close();
+        }
+    }
+
+    private void unavailable(final ProcessContext context, final ProcessSession session, final String url, final Throwable cboe) {
+        getLogger().warn("CKAN {} is unavailable, returning the flowfile to the queue: {}", new Object[]{url, cboe.getMessage()});
+        session.rollback();
+        context.yield();
+    }
+
+    /**
+     * Download the file in ranges of <code>rangeSize</code> bytes, with at most <code>parallel</code> ranges in
+     * flight, and write them in order into <code>out</code> as soon as the next one is complete
+     *
+     * @return Number of bytes written
+     */
+    private long downloadRanges(final CKAN_API_Handler ckan_api_handler, final RemoteFile remoteFile, final int parallel,
+                                final long rangeSize, final OutputStream out) throws IOException {
+        final long length = remoteFile.getLength();
+        final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        long next = 0;
+        long written = 0;
+        try {
+            while (next < length || !inFlight.isEmpty()) {
+                while (next < length && inFlight.size() < parallel) {
+                    final long from = next;
+                    final long to = Math.min(length, next + rangeSize) - 1;
+                    inFlight.add(rangeExecutor.submit(() -> {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) (to - from + 1));
+                        ckan_api_handler.downloadResource(remoteFile.getUrl(), from, to, buffer);
+                        if (buffer.size() != to - from + 1) {
+                            throw new IOException("Range " + from + "-" + to + " of " + remoteFile.getUrl() + " returned " + buffer.size() + " bytes");
+                        }
+                        return buffer.toByteArray();
+                    }));
+                    next = to + 1;
+                }
+                byte[] range = inFlight.poll().get();
+                out.write(range);
+                written += range.length;
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + remoteFile.getUrl());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Some servers do not answer HEAD requests, in that case the file is downloaded in a single request
+     */
+    private RemoteFile headOrUnknown(final CKAN_API_Handler ckan_api_handler, final String fileUrl) {
+        try {
+            return ckan_api_handler.headResource(fileUrl);
+        } catch (IOException e) {
+            getLogger().debug("HEAD {} failed, downloading without ranges: {}", new Object[]{fileUrl, e.toString()});
+            return new RemoteFile(fileUrl, -1, false);
+        }
+    }
+
+    /**
+     * Guess the algorithm of a resource hash from its length, CKAN does not say which one was used.
+     * A "algorithm:" prefix, as written by some harvesters, is ignored.
+     *
+     * @return The digest to compute, or null if the hash is empty or not hexadecimal MD5, SHA-1, SHA-256 or SHA-512
+     */
+    static MessageDigest digestFor(String hash) {
+        String hex = hexOf(hash);
+        if (hex == null || !hex.matches("[0-9a-fA-F]+")) {
+            return null;
+        }
+        try {
+            switch (hex.length()) {
+                case 32:
+                    return MessageDigest.getInstance("MD5");
+                case 40:
+                    return MessageDigest.getInstance("SHA-1");
+                case 64:
+                    return MessageDigest.getInstance("SHA-256");
+                case 128:
+                    return MessageDigest.getInstance("SHA-512");
+                default:
+                    return null;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static String hexOf(String hash) {
+        if (hash == null || hash.trim().isEmpty()) {
+            return null;
+        }
+        String hex = hash.trim();
+        return hex.contains(":") ? hex.substring(hex.lastIndexOf(':') + 1) : hex;
+    }
+
+    /**
+     * The size of a resource comes as a number, a string or null depending on how the resource was created
+     *
+     * @return The size in bytes, or -1 if unknown
+     */
+    static long sizeOf(Object size) {
+        if (size instanceof Number) {
+            return ((Number) size).longValue();
+        }
+        if (size instanceof String) {
+            try {
+                return Long.parseLong(((String) size).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+}